@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2019 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+// Offscreen target for headless rendering in RenderBenchmark. Content persists between
+// frames like it does on a surface, dirty areas are applied as clip.
+class BitmapFrameRenderer implements FrameRenderer {
+    private final Bitmap bitmap;
+    private final Canvas canvas;
+
+    BitmapFrameRenderer(int width, int height) {
+        bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        canvas = new Canvas(bitmap);
+    }
+
+    @Override
+    public Canvas lockCanvas(Rect dirty) {
+        if (bitmap.isRecycled()) return null;
+        canvas.save();
+        if (dirty != null) {
+            if (dirty.isEmpty()) dirty.set(0, 0, 1, 1);
+            canvas.clipRect(dirty);
+        }
+        return canvas;
+    }
+
+    @Override
+    public void unlockCanvasAndPost(Canvas canvas) {
+        canvas.restore();
+    }
+
+    Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    void recycle() {
+        bitmap.recycle();
+    }
+}
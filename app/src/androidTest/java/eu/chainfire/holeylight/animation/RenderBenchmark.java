@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2019 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import com.airbnb.lottie.LottieComposition;
+import com.airbnb.lottie.LottieCompositionFactory;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import eu.chainfire.holeylight.misc.Slog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+// Instrumented, run with connectedAndroidTest. Renders through SpriteRenderer to an offscreen
+// bitmap, so it measures our drawing code without surface or compositor involvement. Timings
+// and allocated bytes are written to logcat.
+@RunWith(AndroidJUnit4.class)
+public class RenderBenchmark {
+    private static final int WARMUP_FRAMES = 60;
+    private static final int FRAMES = 600;
+
+    private static final int[] COLORS_SINGLE = new int[] { Color.GREEN };
+    private static final int[] COLORS_MULTI = new int[] { Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW };
+
+    private final Rect dirty = new Rect();
+    private final Rect lastSpriteRect = new Rect();
+
+    @SuppressWarnings("all")
+    private static void log(String fmt, Object... args) {
+        Slog.d("Benchmark", fmt, args);
+    }
+
+    private interface StateTest {
+        void run(String name, SpriteRenderer spriteRenderer, FrameRenderer frameRenderer, RenderState state);
+    }
+
+    // Same calculation as NotificationAnimation::applyDimensions at native resolution
+    static Point getNativeSize(NotificationAnimation.DeviceProfile profile, LottieComposition composition, float density) {
+        Rect b = composition.getBounds();
+        float addVertical = profile.dpAddScaleBase * density;
+        float addHorizontal = (addVertical * ((float)b.width() / (float)b.height())) + (profile.dpAddScaleHorizontal * density);
+        return new Point((int)((b.width() / density) + addHorizontal), (int)((b.height() / density) + addVertical));
+    }
+
+    // Sheets are round-tripped through a file, so we draw from mapped memory like the player does
+    private static SpriteSheet map(Context context, SpriteSheet spriteSheet) throws IOException {
+        File file = File.createTempFile("benchmark", ".sheet", context.getCacheDir());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+                spriteSheet.writeTo(out);
+            }
+            return SpriteSheet.map(file);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            spriteSheet.recycle();
+        }
+    }
+
+    private static void forEachState(StateTest test) throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        float density = context.getResources().getDisplayMetrics().density;
+        SpriteRenderer spriteRenderer = new SpriteRenderer(density);
+
+        List<String> done = new ArrayList<>();
+        for (NotificationAnimation.DeviceProfile profile : NotificationAnimation.DeviceProfile.PROFILES) {
+            if (done.contains(profile.json)) continue;
+            done.add(profile.json);
+
+            LottieComposition composition = LottieCompositionFactory.fromJsonStringSync(profile.json, null).getValue();
+            assertNotNull(profile.name, composition);
+
+            Point size = getNativeSize(profile, composition, density);
+            SpriteSheet swirl = SpriteSheet.fromLottieComposition(composition, size.x, size.y, SpritePlayer.Mode.SWIRL, Bitmap.Config.ALPHA_8);
+            assertNotNull(profile.name, swirl);
+            SpriteSheet blink = map(context, SpriteSheet.fromSwirl(swirl, SpritePlayer.Mode.BLINK));
+            SpriteSheet single = map(context, SpriteSheet.fromSwirl(swirl, SpritePlayer.Mode.SINGLE));
+            swirl = map(context, swirl);
+
+            BitmapFrameRenderer frameRenderer = new BitmapFrameRenderer(size.x, size.y);
+            String name = String.format(Locale.ENGLISH, "%s %dx%d", profile.name, size.x, size.y);
+            try {
+                test.run(name, spriteRenderer, frameRenderer, state(SpritePlayer.Mode.SWIRL, COLORS_SINGLE, size, swirl));
+                test.run(name, spriteRenderer, frameRenderer, state(SpritePlayer.Mode.SWIRL, COLORS_MULTI, size, swirl));
+                test.run(name, spriteRenderer, frameRenderer, state(SpritePlayer.Mode.BLINK, COLORS_SINGLE, size, blink));
+                test.run(name, spriteRenderer, frameRenderer, state(SpritePlayer.Mode.SINGLE, COLORS_MULTI, size, single));
+            } finally {
+                frameRenderer.recycle();
+                swirl.recycle();
+                blink.recycle();
+                single.recycle();
+            }
+        }
+
+        // TSP square is up to 60% of the screen width
+        int tsp = (int)(context.getResources().getDisplayMetrics().widthPixels * 0.6f);
+        Point size = new Point(tsp, tsp);
+        BitmapFrameRenderer frameRenderer = new BitmapFrameRenderer(size.x, size.y);
+        String name = String.format(Locale.ENGLISH, "TSP %dx%d", size.x, size.y);
+        try {
+            test.run(name, spriteRenderer, frameRenderer, state(SpritePlayer.Mode.TSP, COLORS_SINGLE, size, null));
+            test.run(name, spriteRenderer, frameRenderer, state(SpritePlayer.Mode.TSP, COLORS_MULTI, size, null));
+        } finally {
+            frameRenderer.recycle();
+        }
+    }
+
+    private static RenderState state(SpritePlayer.Mode mode, int[] colors, Point size, SpriteSheet spriteSheet) {
+        // modeStart in the past, so TSP's first draw delay has passed
+        return new RenderState()
+                .withMode(mode, SystemClock.elapsedRealtime() - 60000L)
+                .withColors(colors)
+                .withSize(size.x, size.y)
+                .withDest(size.x, size.y)
+                .withSpriteSheet(mode, spriteSheet);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void benchmark() throws IOException {
+        forEachState((name, spriteRenderer, frameRenderer, state) -> {
+            Debug.startAllocCounting();
+
+            render(spriteRenderer, frameRenderer, state, WARMUP_FRAMES, false);
+            Debug.resetThreadAllocSize();
+            long full = render(spriteRenderer, frameRenderer, state, FRAMES, false);
+            int fullBytes = Debug.getThreadAllocSize();
+
+            render(spriteRenderer, frameRenderer, state, WARMUP_FRAMES, true);
+            Debug.resetThreadAllocSize();
+            long partial = render(spriteRenderer, frameRenderer, state, FRAMES, true);
+            int partialBytes = Debug.getThreadAllocSize();
+
+            Debug.stopAllocCounting();
+
+            log("%s %s/%d colors: full %d ns/frame %d bytes/frame, dirty %d ns/frame %d bytes/frame", name, state.getMode(), state.getColors().length, full / FRAMES, fullBytes / FRAMES, partial / FRAMES, partialBytes / FRAMES);
+        });
+    }
+
+    // Once every sprite frame and every color wheel angle has been drawn, rendering must not
+    // allocate, or GC would run while we're animating in doze
+    @Test
+    @SuppressWarnings("deprecation")
+    public void noSteadyStateAllocations() throws IOException {
+        forEachState((name, spriteRenderer, frameRenderer, state) -> {
+            render(spriteRenderer, frameRenderer, state, FRAMES, true);
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            render(spriteRenderer, frameRenderer, state, FRAMES, true);
+            int count = Debug.getThreadAllocCount();
+            int bytes = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+
+            String result = String.format(Locale.ENGLISH, "%s %s/%d colors: %d allocations, %d bytes", name, state.getMode(), state.getColors().length, count, bytes);
+            log("allocations %s", result);
+            assertEquals(result, 0, count);
+        });
+    }
+
+    // Mirrors SpritePlayer's frame loop: every sprite frame is drawn once per pass, the color
+    // wheel rotates, dirty areas cover the previous and the next sprite
+    private long render(SpriteRenderer spriteRenderer, FrameRenderer frameRenderer, RenderState state, int frames, boolean partial) {
+        SpriteSheet spriteSheet = state.getSpriteSheet();
+        lastSpriteRect.setEmpty();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            float startAngle = (i * 360f) / frames;
+            int frame = spriteSheet != null ? i % spriteSheet.getFrames() : 0;
+
+            Rect lock = null;
+            if (partial && (spriteSheet != null)) {
+                lock = dirty;
+                SpriteRenderer.getSpriteRect(state, spriteSheet, spriteSheet.getFrame(frame), dirty);
+                dirty.union(lastSpriteRect);
+                SpriteRenderer.getSpriteRect(state, spriteSheet, spriteSheet.getFrame(frame), lastSpriteRect);
+            }
+
+            Canvas canvas = frameRenderer.lockCanvas(lock);
+            if (canvas == null) continue;
+            try {
+                spriteRenderer.renderFrame(canvas, state, spriteSheet, frame, startAngle, 0f);
+            } finally {
+                frameRenderer.unlockCanvasAndPost(canvas);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
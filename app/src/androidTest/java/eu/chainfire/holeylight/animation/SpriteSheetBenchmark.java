@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2019 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import com.airbnb.lottie.LottieComposition;
+import com.airbnb.lottie.LottieCompositionFactory;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import eu.chainfire.holeylight.misc.Slog;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// Instrumented, run with connectedAndroidTest. Timings are written to logcat.
+@RunWith(AndroidJUnit4.class)
+public class SpriteSheetBenchmark {
+    private static final int RUNS = 3;
+
+    // Maximum allowed per-pixel alpha difference between the direct and the downscale path,
+    // averaged over a frame. Only edge pixels should differ, and there are few of those.
+    private static final float TOLERANCE_MEAN = 1.0f;
+
+    // Both paths anti-alias the same shapes, but the downscale path samples a raster of the
+    // composition at intrinsic size, which places an edge up to half a source pixel away from
+    // where the direct path puts it. At a downscale ratio of r that is 0.5 / r of a target pixel,
+    // which changes the coverage of a hard edge pixel by at most 255 * 0.5 / r. We allow that,
+    // plus a few steps of rounding from the ALPHA_8 sheets and the intermediate ARGB raster.
+    private static final int TOLERANCE_ROUNDING = 3;
+
+    @SuppressWarnings("all")
+    private static void log(String fmt, Object... args) {
+        Slog.d("Benchmark", fmt, args);
+    }
+
+    private interface ProfileTest {
+        void run(NotificationAnimation.DeviceProfile profile, LottieComposition composition, int width, int height);
+    }
+
+    private static void forEachProfile(ProfileTest test) {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        float density = context.getResources().getDisplayMetrics().density;
+
+        List<String> done = new ArrayList<>();
+        for (NotificationAnimation.DeviceProfile profile : NotificationAnimation.DeviceProfile.PROFILES) {
+            if (done.contains(profile.json)) continue;
+            done.add(profile.json);
+
+            LottieComposition composition = LottieCompositionFactory.fromJsonStringSync(profile.json, null).getValue();
+            assertNotNull(profile.name, composition);
+
+            Point size = RenderBenchmark.getNativeSize(profile, composition, density);
+            test.run(profile, composition, size.x, size.y);
+        }
+    }
+
+    @Test
+    public void buildTime() {
+        forEachProfile((profile, composition, width, height) -> {
+            long direct = time(composition, width, height, true);
+            long downscale = time(composition, width, height, false);
+            log("%s %dx%d SWIRL: downscale %d ms, direct %d ms", profile.name, width, height, downscale / 1000000L, direct / 1000000L);
+        });
+    }
+
+    @Test
+    public void directMatchesDownscale() {
+        forEachProfile(SpriteSheetBenchmark::compare);
+    }
+
+    private static long time(LottieComposition composition, int width, int height, boolean direct) {
+        // first run is warm-up
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i <= RUNS; i++) {
+            long start = System.nanoTime();
+            SpriteSheet spriteSheet = SpriteSheet.fromLottieComposition(composition, width, height, SpritePlayer.Mode.SWIRL, Bitmap.Config.ALPHA_8, direct, null);
+            long elapsed = System.nanoTime() - start;
+            assertNotNull(spriteSheet);
+            spriteSheet.recycle();
+            if (i > 0) best = Math.min(best, elapsed);
+        }
+        return best;
+    }
+
+    private static int getToleranceMax(LottieComposition composition, int width, int height) {
+        Rect bounds = composition.getBounds();
+        float ratio = Math.min(bounds.width() / (float)width, bounds.height() / (float)height);
+        return (int)Math.ceil(255f * 0.5f / Math.max(1f, ratio)) + TOLERANCE_ROUNDING;
+    }
+
+    private static void compare(NotificationAnimation.DeviceProfile profile, LottieComposition composition, int width, int height) {
+        SpriteSheet direct = SpriteSheet.fromLottieComposition(composition, width, height, SpritePlayer.Mode.SWIRL, Bitmap.Config.ALPHA_8, true, null);
+        SpriteSheet downscale = SpriteSheet.fromLottieComposition(composition, width, height, SpritePlayer.Mode.SWIRL, Bitmap.Config.ALPHA_8, false, null);
+        assertNotNull(profile.name, direct);
+        assertNotNull(profile.name, downscale);
+
+        Bitmap bitmapA = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Bitmap bitmapB = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvasA = new Canvas(bitmapA);
+        Canvas canvasB = new Canvas(bitmapB);
+        int[] pixelsA = new int[width * height];
+        int[] pixelsB = new int[width * height];
+
+        float worstMean = 0;
+        int worstMax = 0;
+        int worstFrame = -1;
+        try {
+            for (int i = 0; i < direct.getFrames(); i++) {
+                bitmapA.eraseColor(Color.TRANSPARENT);
+                bitmapB.eraseColor(Color.TRANSPARENT);
+                direct.drawFrame(i, canvasA, null);
+                downscale.drawFrame(i, canvasB, null);
+                bitmapA.getPixels(pixelsA, 0, width, 0, 0, width, height);
+                bitmapB.getPixels(pixelsB, 0, width, 0, 0, width, height);
+
+                long sum = 0;
+                int max = 0;
+                for (int j = 0; j < pixelsA.length; j++) {
+                    int diff = Math.abs((pixelsA[j] >>> 24) - (pixelsB[j] >>> 24));
+                    sum += diff;
+                    max = Math.max(max, diff);
+                }
+                float mean = sum / (float)pixelsA.length;
+                if (mean > worstMean) {
+                    worstMean = mean;
+                    worstFrame = i;
+                }
+                worstMax = Math.max(worstMax, max);
+            }
+        } finally {
+            bitmapA.recycle();
+            bitmapB.recycle();
+            direct.recycle();
+            downscale.recycle();
+        }
+
+        int toleranceMax = getToleranceMax(composition, width, height);
+        String result = String.format(Locale.ENGLISH, "%s %dx%d: worst mean %.3f @ frame %d, worst max %d (max allowed %d)", profile.name, width, height, worstMean, worstFrame, worstMax, toleranceMax);
+        log("compare %s", result);
+        assertTrue(result, worstMean <= TOLERANCE_MEAN);
+        assertTrue(result, worstMax <= toleranceMax);
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2019 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+// Where SpritePlayer's frames end up. lockCanvas may return null if there's nothing to draw to
+// (yet), every non-null canvas must be passed back to unlockCanvasAndPost.
+interface FrameRenderer {
+    // dirty == null locks the entire target. Otherwise only the dirty area is cleared and redrawn,
+    // the rest keeps its previous content. The target may grow the dirty area.
+    Canvas lockCanvas(Rect dirty);
+    void unlockCanvasAndPost(Canvas canvas);
+}
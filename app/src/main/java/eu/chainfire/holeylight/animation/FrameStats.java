@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import eu.chainfire.holeylight.BuildConfig;
+import eu.chainfire.holeylight.misc.Slog;
+
+// Fixed-bucket frame timing histograms, kept per SpritePlayer.Mode and display state. Recording is
+// a few array increments without allocation or locking. The histograms are only read by the log
+// when the animation stops, which is debug only, so release builds don't record at all. Only the
+// render thread records, the log may see slightly stale counts.
+@SuppressWarnings({ "WeakerAccess", "unused" })
+class FrameStats {
+    static final int DISPLAY_ON = 0;
+    static final int DISPLAY_DOZE = 1;
+    static final int DISPLAY_OFF = 2;
+    private static final String[] DISPLAY_NAMES = new String[] { "on", "doze", "off" };
+
+    static final int STAGE_LOCK = 0;
+    static final int STAGE_RENDER = 1;
+    static final int STAGE_POST = 2;
+    private static final String[] STAGE_NAMES = new String[] { "lock", "render", "post" };
+
+    // Upper bounds, the last bucket counts everything above
+    private static final long[] TIME_BUCKETS_US = new long[] { 250, 500, 1000, 2000, 4000, 8000, 16000, 33000 };
+    private static final long[] MISSED_BUCKETS = new long[] { 0, 1, 2, 4, 8 };
+
+    private static final SpritePlayer.Mode[] MODES = SpritePlayer.Mode.values();
+
+    private final long[][][][] times = new long[MODES.length][DISPLAY_NAMES.length][STAGE_NAMES.length][TIME_BUCKETS_US.length + 1];
+    private final long[][][] missed = new long[MODES.length][DISPLAY_NAMES.length][MISSED_BUCKETS.length + 1];
+
+    static String getDisplayName(int display) {
+        return DISPLAY_NAMES[display];
+    }
+
+    private static int bucket(long[] bounds, long value) {
+        for (int i = 0; i < bounds.length; i++) {
+            if (value <= bounds[i]) return i;
+        }
+        return bounds.length;
+    }
+
+    void recordStage(SpritePlayer.Mode mode, int display, int stage, long nanos) {
+        if (!BuildConfig.DEBUG) return;
+        times[mode.ordinal()][display][stage][bucket(TIME_BUCKETS_US, nanos / 1000L)]++;
+    }
+
+    // Number of vsyncs that passed between when we wanted to run and when we did
+    void recordMissed(SpritePlayer.Mode mode, int display, long vsyncs) {
+        if (!BuildConfig.DEBUG) return;
+        missed[mode.ordinal()][display][bucket(MISSED_BUCKETS, Math.max(vsyncs, 0))]++;
+    }
+
+    private static String format(long[] bounds, String unit, long[] counts) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            if (sb.length() > 0) sb.append(' ');
+            if (i < bounds.length) {
+                sb.append("<=").append(bounds[i]).append(unit);
+            } else {
+                sb.append('>').append(bounds[bounds.length - 1]).append(unit);
+            }
+            sb.append(':').append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    void log(String tag) {
+        if (!BuildConfig.DEBUG) return;
+        for (SpritePlayer.Mode mode : MODES) {
+            for (int display = 0; display < DISPLAY_NAMES.length; display++) {
+                long frames = 0;
+                for (long count : missed[mode.ordinal()][display]) frames += count;
+                long[] lock = times[mode.ordinal()][display][STAGE_LOCK];
+                boolean drawn = false;
+                for (long count : lock) drawn |= (count > 0);
+                if ((frames == 0) && !drawn) continue;
+
+                for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+                    Slog.d(tag, "%s/%s %s [%s]", mode, DISPLAY_NAMES[display], STAGE_NAMES[stage], format(TIME_BUCKETS_US, "us", times[mode.ordinal()][display][stage]));
+                }
+                Slog.d(tag, "%s/%s missed vsyncs [%s]", mode, DISPLAY_NAMES[display], format(MISSED_BUCKETS, "", missed[mode.ordinal()][display]));
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.graphics.Color;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.os.Build;
+import android.os.CancellationSignal;
 import android.util.TypedValue;
 import android.view.View;
 import android.view.WindowManager;
@@ -52,10 +53,45 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
     private static final String jsonBeyond1 = "{\"v\":\"5.1.20\",\"fr\":60,\"ip\":0,\"op\":61,\"w\":138,\"h\":138,\"nm\":\"beyond_punch_cut_ani_B1\",\"ddd\":0,\"assets\":[],\"layers\":[{\"ddd\":0,\"ind\":1,\"ty\":1,\"nm\":\"L\",\"parent\":2,\"td\":1,\"sr\":1,\"ks\":{\"o\":{\"a\":0,\"k\":100,\"ix\":11},\"r\":{\"a\":0,\"k\":45,\"ix\":10},\"p\":{\"a\":1,\"k\":[{\"i\":{\"x\":0.1,\"y\":1},\"o\":{\"x\":0.33,\"y\":0},\"n\":\"0p1_1_0p33_0\",\"t\":0,\"s\":[-107.5,0.548,0],\"e\":[108,0.548,0],\"to\":[0,0,0],\"ti\":[0,0,0]},{\"t\":60}],\"ix\":2},\"a\":{\"a\":0,\"k\":[24,125,0],\"ix\":1},\"s\":{\"a\":0,\"k\":[100,100,100],\"ix\":6}},\"ao\":0,\"sw\":48,\"sh\":250,\"sc\":\"#ffffff\",\"ip\":0,\"op\":4000,\"st\":0,\"bm\":0},{\"ddd\":0,\"ind\":2,\"ty\":4,\"nm\":\"cue_02\",\"tt\":1,\"sr\":1,\"ks\":{\"o\":{\"a\":0,\"k\":100,\"ix\":11},\"r\":{\"a\":0,\"k\":0,\"ix\":10},\"p\":{\"a\":0,\"k\":[69,69,0],\"ix\":2},\"a\":{\"a\":0,\"k\":[0,0,0],\"ix\":1},\"s\":{\"a\":0,\"k\":[100,100,100],\"ix\":6}},\"ao\":0,\"hasMask\":true,\"masksProperties\":[{\"inv\":false,\"mode\":\"s\",\"pt\":{\"a\":0,\"k\":{\"i\":[[28.719,0],[0,-28.721],[-28.719,0],[0,28.721]],\"o\":[[-28.719,0],[0,28.721],[28.719,0],[0,-28.721]],\"v\":[[0,-52.008],[-52,-0.004],[0,52],[52,-0.004]],\"c\":true},\"ix\":1},\"o\":{\"a\":0,\"k\":100,\"ix\":3},\"x\":{\"a\":0,\"k\":0,\"ix\":4},\"nm\":\"Mask 1\"}],\"shapes\":[{\"ty\":\"gr\",\"it\":[{\"d\":3,\"ty\":\"el\",\"s\":{\"a\":0,\"k\":[104,104],\"ix\":2},\"p\":{\"a\":0,\"k\":[0,0],\"ix\":3},\"nm\":\"Ellipse Path 1\",\"mn\":\"ADBE Vector Shape - Ellipse\",\"hd\":false},{\"ty\":\"st\",\"c\":{\"a\":0,\"k\":[1,1,1,1],\"ix\":3},\"o\":{\"a\":0,\"k\":100,\"ix\":4},\"w\":{\"a\":1,\"k\":[{\"i\":{\"x\":[0.5],\"y\":[1]},\"o\":{\"x\":[0.33],\"y\":[0]},\"n\":[\"0p5_1_0p33_0\"],\"t\":0,\"s\":[0],\"e\":[14]},{\"i\":{\"x\":[0.833],\"y\":[0.833]},\"o\":{\"x\":[0.1],\"y\":[0]},\"n\":[\"0p833_0p833_0p1_0\"],\"t\":9,\"s\":[14],\"e\":[0]},{\"t\":53,\"s\":[0],\"h\":1}],\"ix\":5},\"lc\":2,\"lj\":1,\"ml\":4,\"nm\":\"Stroke 1\",\"mn\":\"ADBE Vector Graphic - Stroke\",\"hd\":false},{\"ty\":\"tr\",\"p\":{\"a\":0,\"k\":[0,0],\"ix\":2},\"a\":{\"a\":0,\"k\":[0,0],\"ix\":1},\"s\":{\"a\":0,\"k\":[100,100],\"ix\":3},\"r\":{\"a\":0,\"k\":0,\"ix\":6},\"o\":{\"a\":0,\"k\":100,\"ix\":7},\"sk\":{\"a\":0,\"k\":0,\"ix\":4},\"sa\":{\"a\":0,\"k\":0,\"ix\":5},\"nm\":\"Transform\"}],\"nm\":\"Ellipse 1\",\"np\":2,\"cix\":2,\"ix\":1,\"mn\":\"ADBE Vector Group\",\"hd\":false}],\"ip\":0,\"op\":4000,\"st\":0,\"bm\":0},{\"ddd\":0,\"ind\":3,\"ty\":4,\"nm\":\"cue_01\",\"sr\":1,\"ks\":{\"o\":{\"a\":0,\"k\":30,\"ix\":11},\"r\":{\"a\":0,\"k\":0,\"ix\":10},\"p\":{\"a\":0,\"k\":[69,69,0],\"ix\":2},\"a\":{\"a\":0,\"k\":[0,0,0],\"ix\":1},\"s\":{\"a\":0,\"k\":[100,100,100],\"ix\":6}},\"ao\":0,\"hasMask\":true,\"masksProperties\":[{\"inv\":false,\"mode\":\"s\",\"pt\":{\"a\":0,\"k\":{\"i\":[[28.719,0],[0,-28.721],[-28.719,0],[0,28.721]],\"o\":[[-28.719,0],[0,28.721],[28.719,0],[0,-28.721]],\"v\":[[0,-52.008],[-52,-0.004],[0,52],[52,-0.004]],\"c\":true},\"ix\":1},\"o\":{\"a\":0,\"k\":100,\"ix\":3},\"x\":{\"a\":0,\"k\":0,\"ix\":4},\"nm\":\"Mask 1\"}],\"shapes\":[{\"ty\":\"gr\",\"it\":[{\"d\":3,\"ty\":\"el\",\"s\":{\"a\":0,\"k\":[104,104],\"ix\":2},\"p\":{\"a\":0,\"k\":[0,0],\"ix\":3},\"nm\":\"Ellipse Path 1\",\"mn\":\"ADBE Vector Shape - Ellipse\",\"hd\":false},{\"ty\":\"st\",\"c\":{\"a\":0,\"k\":[1,1,1,1],\"ix\":3},\"o\":{\"a\":0,\"k\":100,\"ix\":4},\"w\":{\"a\":1,\"k\":[{\"i\":{\"x\":[0.5],\"y\":[1]},\"o\":{\"x\":[0.33],\"y\":[0]},\"n\":[\"0p5_1_0p33_0\"],\"t\":0,\"s\":[0],\"e\":[14]},{\"i\":{\"x\":[0.833],\"y\":[0.833]},\"o\":{\"x\":[0.1],\"y\":[0]},\"n\":[\"0p833_0p833_0p1_0\"],\"t\":9,\"s\":[14],\"e\":[0]},{\"t\":53,\"s\":[0],\"h\":1}],\"ix\":5},\"lc\":2,\"lj\":1,\"ml\":4,\"nm\":\"Stroke 1\",\"mn\":\"ADBE Vector Graphic - Stroke\",\"hd\":false},{\"ty\":\"tr\",\"p\":{\"a\":0,\"k\":[0,0],\"ix\":2},\"a\":{\"a\":0,\"k\":[0,0],\"ix\":1},\"s\":{\"a\":0,\"k\":[100,100],\"ix\":3},\"r\":{\"a\":0,\"k\":0,\"ix\":6},\"o\":{\"a\":0,\"k\":100,\"ix\":7},\"sk\":{\"a\":0,\"k\":0,\"ix\":4},\"sa\":{\"a\":0,\"k\":0,\"ix\":5},\"nm\":\"Transform\"}],\"nm\":\"Ellipse 1\",\"np\":2,\"cix\":2,\"ix\":1,\"mn\":\"ADBE Vector Group\",\"hd\":false}],\"ip\":0,\"op\":4000,\"st\":0,\"bm\":0}],\"markers\":[]}";
     private static final String jsonBeyond2 = "{\"v\":\"5.1.20\",\"fr\":60,\"ip\":0,\"op\":61,\"w\":258,\"h\":132,\"nm\":\"beyond_punch_cut_ani_B2\",\"ddd\":0,\"assets\":[],\"layers\":[{\"ddd\":0,\"ind\":1,\"ty\":1,\"nm\":\"L\",\"td\":1,\"sr\":1,\"ks\":{\"o\":{\"a\":0,\"k\":100,\"ix\":11},\"r\":{\"a\":0,\"k\":45,\"ix\":10},\"p\":{\"a\":1,\"k\":[{\"i\":{\"x\":0.1,\"y\":1},\"o\":{\"x\":0.33,\"y\":0},\"n\":\"0p1_1_0p33_0\",\"t\":0,\"s\":[-40,70.548,0],\"e\":[288,70.548,0],\"to\":[0,0,0],\"ti\":[0,0,0]},{\"t\":60}],\"ix\":2},\"a\":{\"a\":0,\"k\":[24,125,0],\"ix\":1},\"s\":{\"a\":0,\"k\":[100,100,100],\"ix\":6}},\"ao\":0,\"sw\":48,\"sh\":250,\"sc\":\"#ffffff\",\"ip\":0,\"op\":4000,\"st\":0,\"bm\":0},{\"ddd\":0,\"ind\":2,\"ty\":4,\"nm\":\"cue_02\",\"tt\":1,\"sr\":1,\"ks\":{\"o\":{\"a\":0,\"k\":100,\"ix\":11},\"r\":{\"a\":0,\"k\":0,\"ix\":10},\"p\":{\"a\":0,\"k\":[129,66,0],\"ix\":2},\"a\":{\"a\":0,\"k\":[0,0,0],\"ix\":1},\"s\":{\"a\":0,\"k\":[100,100,100],\"ix\":6}},\"ao\":0,\"hasMask\":true,\"masksProperties\":[{\"inv\":false,\"mode\":\"s\",\"pt\":{\"a\":0,\"k\":{\"i\":[[0,-27.062],[27.062,0],[0,0],[0,27.062],[-27.062,0],[0,0]],\"o\":[[0,27.062],[0,0],[-27.062,0],[0,-27.062],[0,0],[27.062,0]],\"v\":[[110,0],[61,49],[-61,49],[-110,0],[-61,-49],[61,-49]],\"c\":true},\"ix\":1},\"o\":{\"a\":0,\"k\":100,\"ix\":3},\"x\":{\"a\":0,\"k\":0,\"ix\":4},\"nm\":\"Mask 1\"}],\"shapes\":[{\"ty\":\"gr\",\"it\":[{\"ty\":\"rc\",\"d\":1,\"s\":{\"a\":0,\"k\":[220,98],\"ix\":2},\"p\":{\"a\":0,\"k\":[0,0],\"ix\":3},\"r\":{\"a\":0,\"k\":54,\"ix\":4},\"nm\":\"Rectangle Path 1\",\"mn\":\"ADBE Vector Shape - Rect\",\"hd\":false},{\"ty\":\"st\",\"c\":{\"a\":0,\"k\":[1,1,1,1],\"ix\":3},\"o\":{\"a\":0,\"k\":100,\"ix\":4},\"w\":{\"a\":1,\"k\":[{\"i\":{\"x\":[0.5],\"y\":[1]},\"o\":{\"x\":[0.33],\"y\":[0]},\"n\":[\"0p5_1_0p33_0\"],\"t\":0,\"s\":[0],\"e\":[14]},{\"i\":{\"x\":[0.833],\"y\":[0.833]},\"o\":{\"x\":[0.1],\"y\":[0]},\"n\":[\"0p833_0p833_0p1_0\"],\"t\":9,\"s\":[14],\"e\":[0]},{\"t\":53,\"s\":[0],\"h\":1}],\"ix\":5},\"lc\":1,\"lj\":1,\"ml\":4,\"nm\":\"Stroke 1\",\"mn\":\"ADBE Vector Graphic - Stroke\",\"hd\":false},{\"ty\":\"tr\",\"p\":{\"a\":0,\"k\":[0,0],\"ix\":2},\"a\":{\"a\":0,\"k\":[0,0],\"ix\":1},\"s\":{\"a\":0,\"k\":[100,100],\"ix\":3},\"r\":{\"a\":0,\"k\":0,\"ix\":6},\"o\":{\"a\":0,\"k\":100,\"ix\":7},\"sk\":{\"a\":0,\"k\":0,\"ix\":4},\"sa\":{\"a\":0,\"k\":0,\"ix\":5},\"nm\":\"Transform\"}],\"nm\":\"Rectangle 1\",\"np\":2,\"cix\":2,\"ix\":1,\"mn\":\"ADBE Vector Group\",\"hd\":false}],\"ip\":0,\"op\":4000,\"st\":0,\"bm\":0},{\"ddd\":0,\"ind\":3,\"ty\":4,\"nm\":\"cue_01\",\"sr\":1,\"ks\":{\"o\":{\"a\":0,\"k\":30,\"ix\":11},\"r\":{\"a\":0,\"k\":0,\"ix\":10},\"p\":{\"a\":0,\"k\":[129,66,0],\"ix\":2},\"a\":{\"a\":0,\"k\":[0,0,0],\"ix\":1},\"s\":{\"a\":0,\"k\":[100,100,100],\"ix\":6}},\"ao\":0,\"hasMask\":true,\"masksProperties\":[{\"inv\":false,\"mode\":\"s\",\"pt\":{\"a\":0,\"k\":{\"i\":[[0,-27.062],[27.062,0],[0,0],[0,27.062],[-27.062,0],[0,0]],\"o\":[[0,27.062],[0,0],[-27.062,0],[0,-27.062],[0,0],[27.062,0]],\"v\":[[110,0],[61,49],[-61,49],[-110,0],[-61,-49],[61,-49]],\"c\":true},\"ix\":1},\"o\":{\"a\":0,\"k\":100,\"ix\":3},\"x\":{\"a\":0,\"k\":0,\"ix\":4},\"nm\":\"Mask 1\"}],\"shapes\":[{\"ty\":\"gr\",\"it\":[{\"ty\":\"rc\",\"d\":1,\"s\":{\"a\":0,\"k\":[220,98],\"ix\":2},\"p\":{\"a\":0,\"k\":[0,0],\"ix\":3},\"r\":{\"a\":0,\"k\":54,\"ix\":4},\"nm\":\"Rectangle Path 1\",\"mn\":\"ADBE Vector Shape - Rect\",\"hd\":false},{\"ty\":\"st\",\"c\":{\"a\":0,\"k\":[1,1,1,1],\"ix\":3},\"o\":{\"a\":0,\"k\":100,\"ix\":4},\"w\":{\"a\":1,\"k\":[{\"i\":{\"x\":[0.5],\"y\":[1]},\"o\":{\"x\":[0.33],\"y\":[0]},\"n\":[\"0p5_1_0p33_0\"],\"t\":0,\"s\":[0],\"e\":[14]},{\"i\":{\"x\":[0.833],\"y\":[0.833]},\"o\":{\"x\":[0.1],\"y\":[0]},\"n\":[\"0p833_0p833_0p1_0\"],\"t\":9,\"s\":[14],\"e\":[0]},{\"t\":53,\"s\":[0],\"h\":1}],\"ix\":5},\"lc\":1,\"lj\":1,\"ml\":4,\"nm\":\"Stroke 1\",\"mn\":\"ADBE Vector Graphic - Stroke\",\"hd\":false},{\"ty\":\"tr\",\"p\":{\"a\":0,\"k\":[0,0],\"ix\":2},\"a\":{\"a\":0,\"k\":[0,0],\"ix\":1},\"s\":{\"a\":0,\"k\":[100,100],\"ix\":3},\"r\":{\"a\":0,\"k\":0,\"ix\":6},\"o\":{\"a\":0,\"k\":100,\"ix\":7},\"sk\":{\"a\":0,\"k\":0,\"ix\":4},\"sa\":{\"a\":0,\"k\":0,\"ix\":5},\"nm\":\"Transform\"}],\"nm\":\"Rectangle 1\",\"np\":2,\"cix\":2,\"ix\":1,\"mn\":\"ADBE Vector Group\",\"hd\":false}],\"ip\":0,\"op\":4000,\"st\":0,\"bm\":0}],\"markers\":[]}";
 
+    static class DeviceProfile {
+        static final DeviceProfile[] PROFILES = new DeviceProfile[] {
+                new DeviceProfile("beyond0", "S10e", jsonBeyond0, 4, 0, 0, 0),
+                new DeviceProfile("beyond1", "S10", jsonBeyond1, 4, 0, 0, 0),
+                new DeviceProfile("beyond2", "S10+", jsonBeyond2, 5, 1, 0.25f, -1.75f),
+                new DeviceProfile("beyondx", "S10 5G", jsonBeyond2, 5, 1, 0.25f, -1.75f),
+        };
+
+        static DeviceProfile get(String device) {
+            for (DeviceProfile profile : PROFILES) {
+                if (device.startsWith(profile.device)) return profile;
+            }
+            return null;
+        }
+
+        final String device;
+        final String name;
+        final String json;
+        final float dpAddScaleBase;
+        final float dpAddScaleHorizontal;
+        final float dpShiftVertical;
+        final float dpShiftHorizontal;
+
+        private DeviceProfile(String device, String name, String json, float dpAddScaleBase, float dpAddScaleHorizontal, float dpShiftVertical, float dpShiftHorizontal) {
+            this.device = device;
+            this.name = name;
+            this.json = json;
+            this.dpAddScaleBase = dpAddScaleBase;
+            this.dpAddScaleHorizontal = dpAddScaleHorizontal;
+            this.dpShiftVertical = dpShiftVertical;
+            this.dpShiftHorizontal = dpShiftHorizontal;
+        }
+    }
+
     private final OnNotificationAnimationListener onNotificationAnimationListener;
     private final Settings settings;
     private final CameraCutout cameraCutout;
     private final SpritePlayer spritePlayer;
+    private final SpriteSheetCache spriteSheetCache;
 
     private final String json;
     private final float dpAddScaleBase;
@@ -77,6 +113,10 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
     private volatile boolean hideAODFully = false;
     private volatile SpritePlayer.Mode mode = SpritePlayer.Mode.SWIRL;
     private volatile Rect tspRect = new Rect(0, 0, 0, 0);
+    private Layout layout = null;
+    private float appliedSpeed = Float.NaN;
+    private boolean rotationVisible = true;
+    private boolean hidden = false;
 
     public NotificationAnimation(Context context, SpritePlayer spritePlayer, OnNotificationAnimationListener onNotificationAnimationListener) {
         this.onNotificationAnimationListener = onNotificationAnimationListener;
@@ -84,31 +124,13 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
         cameraCutout = new CameraCutout(context);
         this.spritePlayer = spritePlayer;
 
-        String device = OVERRIDE_DEVICE != null ? OVERRIDE_DEVICE : Build.DEVICE;
-        if (device.startsWith("beyond0")) { //s10e
-            json = jsonBeyond0;
-            dpAddScaleBase = 4;
-            dpAddScaleHorizontal = 0;
-            dpShiftVertical = 0;
-            dpShiftHorizontal = 0;
-        } else if (device.startsWith("beyond1")) { // s10
-            json = jsonBeyond1;
-            dpAddScaleBase = 4;
-            dpAddScaleHorizontal = 0;
-            dpShiftVertical = 0;
-            dpShiftHorizontal = 0;
-        } else if (device.startsWith("beyond2")) { // s10+
-            json = jsonBeyond2;
-            dpAddScaleBase = 5;
-            dpAddScaleHorizontal = 1;
-            dpShiftVertical = 0.25f;
-            dpShiftHorizontal = -1.75f;
-        } else if (device.startsWith("beyondx")) { // s10 x
-            json = jsonBeyond2;
-            dpAddScaleBase = 5;
-            dpAddScaleHorizontal = 1;
-            dpShiftVertical = 0.25f;
-            dpShiftHorizontal = -1.75f;
+        DeviceProfile profile = DeviceProfile.get(OVERRIDE_DEVICE != null ? OVERRIDE_DEVICE : Build.DEVICE);
+        if (profile != null) {
+            json = profile.json;
+            dpAddScaleBase = profile.dpAddScaleBase;
+            dpAddScaleHorizontal = profile.dpAddScaleHorizontal;
+            dpShiftVertical = profile.dpShiftVertical;
+            dpShiftHorizontal = profile.dpShiftHorizontal;
         } else {
             json = null;
             dpAddScaleBase = 0;
@@ -117,11 +139,14 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
             dpShiftHorizontal = 0;
         }
 
+        spriteSheetCache = (json != null) ? new SpriteSheetCache(context, json) : null;
+
         if (!isValid()) return;
 
         LottieCompositionFactory.fromJsonString(json, null).addListener(result -> {
             lottieComposition = result;
             applyDimensions();
+            spritePlayer.setOnSpriteSheetNeededListener(this::loadSpriteSheet);
         });
 
         spritePlayer.setOnAnimationListener(new SpritePlayer.OnAnimationListener() {
@@ -228,6 +253,63 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
         }
     }
 
+    // Everything applyDimensions() computes the layout from, and the results. Views are only
+    // updated when the inputs change.
+    private static class Layout {
+        final int rotation;
+        final Point resolution;
+        final Point nativeResolution;
+        final Rect cutout;
+        final Rect tsp;
+        final float dpToPx;
+        final float dpAddScaleBase;
+        final float dpAddScaleHorizontal;
+        final float dpShiftVertical;
+        final float dpShiftHorizontal;
+        final float dpAdd;
+        final SpritePlayer.Mode mode;
+        final boolean hideAOD;
+        final boolean hideAODFully;
+
+        final Rect view = new Rect();
+        final Rect container = new Rect();
+
+        Layout(int rotation, Point resolution, Point nativeResolution, Rect cutout, Rect tsp, float dpToPx, float dpAddScaleBase, float dpAddScaleHorizontal, float dpShiftVertical, float dpShiftHorizontal, float dpAdd, SpritePlayer.Mode mode, boolean hideAOD, boolean hideAODFully) {
+            this.rotation = rotation;
+            this.resolution = new Point(resolution);
+            this.nativeResolution = new Point(nativeResolution);
+            this.cutout = new Rect(cutout);
+            this.tsp = new Rect(tsp);
+            this.dpToPx = dpToPx;
+            this.dpAddScaleBase = dpAddScaleBase;
+            this.dpAddScaleHorizontal = dpAddScaleHorizontal;
+            this.dpShiftVertical = dpShiftVertical;
+            this.dpShiftHorizontal = dpShiftHorizontal;
+            this.dpAdd = dpAdd;
+            this.mode = mode;
+            this.hideAOD = hideAOD;
+            this.hideAODFully = hideAODFully;
+        }
+
+        boolean sameInputs(Layout other) {
+            return (other != null) &&
+                    (rotation == other.rotation) &&
+                    resolution.equals(other.resolution) &&
+                    nativeResolution.equals(other.nativeResolution) &&
+                    cutout.equals(other.cutout) &&
+                    tsp.equals(other.tsp) &&
+                    (dpToPx == other.dpToPx) &&
+                    (dpAddScaleBase == other.dpAddScaleBase) &&
+                    (dpAddScaleHorizontal == other.dpAddScaleHorizontal) &&
+                    (dpShiftVertical == other.dpShiftVertical) &&
+                    (dpShiftHorizontal == other.dpShiftHorizontal) &&
+                    (dpAdd == other.dpAdd) &&
+                    (mode == other.mode) &&
+                    (hideAOD == other.hideAOD) &&
+                    (hideAODFully == other.hideAODFully);
+        }
+    }
+
     @SuppressWarnings({"StatementWithEmptyBody", "WeakerAccess"})
     public void applyDimensions() {
         synchronized (getSynchronizer()) {
@@ -246,99 +328,142 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
 
                 Point resolution = cameraCutout.getCurrentResolution();
 
-                float left;
-                float top;
-                float width;
-                float height;
-
                 if (mode == SpritePlayer.Mode.TSP) {
                     // TSP saves the entire width
                     tspRect.left = 0;
                     tspRect.right = resolution.x;
+                }
 
-                    // Limit render square size to 60% of width (resolution)
-                    int squareSize = Math.min((int)(resolution.x * 0.6f), Math.min(tspRect.width(), tspRect.height()));
+                Layout layout = new Layout(rotation, resolution, cameraCutout.getNativeResolution(), cameraCutout.getCutout().getArea(), tspRect, realDpToPx, getDpAddScaleBase(), getDpAddScaleHorizontal(), getDpShiftVertical(), getDpShiftHorizontal(), dpAdd, mode, hideAOD, hideAODFully);
+                if (!layout.sameInputs(this.layout)) {
+                    computeLayout(layout);
+                    applyLayout(layout);
+                    this.layout = layout;
+                }
 
-                    // Apply
-                    left = tspRect.centerX() - (squareSize / 2f);
-                    top = tspRect.centerY() - (squareSize / 2f);
-                    width = squareSize;
-                    height = squareSize;
-                } else {
-                    // something weird is going on with Lottie's px->dp if current resolution doesn't match native resolution
-                    float scale = (float) resolution.x / (float) cameraCutout.getNativeResolution().x;
-                    float LottieDpToPx = (1.0f / scale) * realDpToPx;
-
-                    Rect r = cameraCutout.getCutout().getArea();
-                    Rect b = lottieComposition.getBounds();
-
-                    height = (b.height() / LottieDpToPx);
-                    width = (b.width() / LottieDpToPx);
-                    left = r.exactCenterX() - (width / 2.0f) + (getDpShiftHorizontal() * realDpToPx);
-                    top = r.exactCenterY() - (height / 2.0f) + (getDpShiftVertical() * realDpToPx);
-
-                    // you'd assume as these animations come straight from Samsung's ROMs that they'd work perfectly
-                    // out of the box, but oh no...
-                    float addVertical = (getDpAddScaleBase() + dpAdd) * realDpToPx;
-                    float addHorizontal = (addVertical * ((float)b.width() / (float)b.height())) + (getDpAddScaleHorizontal() * realDpToPx);
-                    float scaledWidth = width + addHorizontal;
-                    float scaledHeight = height + addVertical;
-                    left -= (scaledWidth - width) / 2.0f;
-                    top -= (scaledHeight - height) / 2.0f;
-                    width = scaledWidth;
-                    height = scaledHeight;
-
-                    if (rotation == 2) { // upside down
-                        left = resolution.x - (int)(left + width);
-                        top = resolution.y - (int)(top + height);
-                    }
+                // Get going
+                float speed = getSpeedFactor();
+                if (speed != appliedSpeed) {
+                    // restarts the animation
+                    spritePlayer.setSpeed(speed);
+                    appliedSpeed = speed;
+                }
+                if (!spritePlayer.isAnimating() && play) {
+                    spritePlayer.playAnimation();
                 }
+            }
+        }
+    }
 
-                // we're only going to allow portrait and reverse-portrait
-                spritePlayer.setVisibility((rotation % 2) == 0 ? View.VISIBLE : View.INVISIBLE);
+    private void computeLayout(Layout layout) {
+        Point resolution = layout.resolution;
+        float realDpToPx = layout.dpToPx;
 
-                Rect update = new Rect();
+        float left;
+        float top;
+        float width;
+        float height;
 
-                // Update internal views first
-                if (hideAOD) {
-                    update.set((int)left, (int)top, (int)(left + width), (int)(top + height));
-                } else {
-                    update.set(0, 0, (int)width, (int)height);
-                }
+        if (layout.mode == SpritePlayer.Mode.TSP) {
+            // Limit render square size to 60% of width (resolution)
+            int squareSize = Math.min((int)(resolution.x * 0.6f), Math.min(layout.tsp.width(), layout.tsp.height()));
 
-                Slog.d("Anim", "Apply/View " + update.toString());
-                spritePlayer.updateDisplayArea(update);
+            // Apply
+            left = layout.tsp.centerX() - (squareSize / 2f);
+            top = layout.tsp.centerY() - (squareSize / 2f);
+            width = squareSize;
+            height = squareSize;
+        } else {
+            // something weird is going on with Lottie's px->dp if current resolution doesn't match native resolution
+            float scale = (float) resolution.x / (float) layout.nativeResolution.x;
+            float LottieDpToPx = (1.0f / scale) * realDpToPx;
+
+            Rect r = layout.cutout;
+            Rect b = lottieComposition.getBounds();
+
+            height = (b.height() / LottieDpToPx);
+            width = (b.width() / LottieDpToPx);
+            left = r.exactCenterX() - (width / 2.0f) + (layout.dpShiftHorizontal * realDpToPx);
+            top = r.exactCenterY() - (height / 2.0f) + (layout.dpShiftVertical * realDpToPx);
+
+            // you'd assume as these animations come straight from Samsung's ROMs that they'd work perfectly
+            // out of the box, but oh no...
+            float addVertical = (layout.dpAddScaleBase + layout.dpAdd) * realDpToPx;
+            float addHorizontal = (addVertical * ((float)b.width() / (float)b.height())) + (layout.dpAddScaleHorizontal * realDpToPx);
+            float scaledWidth = width + addHorizontal;
+            float scaledHeight = height + addVertical;
+            left -= (scaledWidth - width) / 2.0f;
+            top -= (scaledHeight - height) / 2.0f;
+            width = scaledWidth;
+            height = scaledHeight;
+
+            if (layout.rotation == 2) { // upside down
+                left = resolution.x - (int)(left + width);
+                top = resolution.y - (int)(top + height);
+            }
+        }
 
-                // Update parent view
-                WindowManager.LayoutParams params = (WindowManager.LayoutParams)spritePlayer.getLayoutParams();
-                if (hideAOD) {
-                    // If not hideAODFully, less than 100% height, to leave room for the fully charged notification and the fingerprint animation
-                    update.set(0, 0, resolution.x, hideAODFully ? resolution.y : (int)(resolution.y * 0.75f));
-                    spritePlayer.setBackgroundColor(Color.BLACK);
-                } else {
-                    update.set((int)left, (int)top, (int)(left + width), (int)(top + height));
-                    spritePlayer.setBackgroundColor(Color.TRANSPARENT);
-                }
-                params.x = update.left;
-                params.y = update.top;
-                params.width = update.width();
-                params.height = update.height();
-                Slog.d("Anim", "Apply/Container " + update.toString());
-                spritePlayer.setLayoutParams(params);
-                spritePlayer.setDrawBackground(hideAOD);
+        if (layout.hideAOD) {
+            layout.view.set((int)left, (int)top, (int)(left + width), (int)(top + height));
+            // If not hideAODFully, less than 100% height, to leave room for the fully charged notification and the fingerprint animation
+            layout.container.set(0, 0, resolution.x, layout.hideAODFully ? resolution.y : (int)(resolution.y * 0.75f));
+        } else {
+            layout.view.set(0, 0, (int)width, (int)height);
+            layout.container.set((int)left, (int)top, (int)(left + width), (int)(top + height));
+        }
+    }
 
-                // Get going
-                spritePlayer.setSpeed(getSpeedFactor());
-                spritePlayer.setOnSpriteSheetNeededListener((w, h, m) -> SpriteSheet.fromLottieComposition(lottieComposition, w, h, m));
-                if (!spritePlayer.isAnimating() && play) {
-                    spritePlayer.playAnimation();
-                }
-                spritePlayer.invalidateDisplayArea();
-                if (onNotificationAnimationListener != null) {
-                    onNotificationAnimationListener.onDimensionsApplied(spritePlayer);
-                }
+    private void applyLayout(Layout layout) {
+        // we're only going to allow portrait and reverse-portrait
+        rotationVisible = (layout.rotation % 2) == 0;
+        updateVisibility();
+
+        // Update internal views first
+        Slog.d("Anim", "Apply/View " + layout.view.toString());
+        spritePlayer.updateDisplayArea(layout.view);
+
+        // Update parent view
+        WindowManager.LayoutParams params = (WindowManager.LayoutParams)spritePlayer.getLayoutParams();
+        spritePlayer.setBackgroundColor(layout.hideAOD ? Color.BLACK : Color.TRANSPARENT);
+        params.x = layout.container.left;
+        params.y = layout.container.top;
+        params.width = layout.container.width();
+        params.height = layout.container.height();
+        Slog.d("Anim", "Apply/Container " + layout.container.toString());
+        spritePlayer.setLayoutParams(params);
+        spritePlayer.setDrawBackground(layout.hideAOD);
+
+        spritePlayer.invalidateDisplayArea();
+        if (onNotificationAnimationListener != null) {
+            onNotificationAnimationListener.onDimensionsApplied(spritePlayer);
+        }
+    }
+
+    private SpriteSheet loadSpriteSheet(int width, int height, SpritePlayer.Mode mode, CancellationSignal cancellationSignal) {
+        SpriteSheet spriteSheet = spriteSheetCache.get(width, height, mode);
+        if (spriteSheet != null) return spriteSheet;
+
+        if (mode == SpritePlayer.Mode.SWIRL) {
+            spriteSheet = SpriteSheet.fromLottieComposition(lottieComposition, width, height, mode, cancellationSignal);
+        } else {
+            // derived from SWIRL, so we only ever go through the Lottie timeline once
+            SpriteSheet swirl = loadSpriteSheet(width, height, SpritePlayer.Mode.SWIRL, cancellationSignal);
+            if (swirl == null) return null;
+            if (!cancellationSignal.isCanceled()) {
+                spriteSheet = SpriteSheet.fromSwirl(swirl, mode);
+            }
+            swirl.recycle();
+        }
+
+        if ((spriteSheet != null) && spriteSheetCache.put(spriteSheet, mode)) {
+            // swap the heap-backed sheet for the mapped one
+            SpriteSheet mapped = spriteSheetCache.get(width, height, mode);
+            if (mapped != null) {
+                spriteSheet.recycle();
+                spriteSheet = mapped;
             }
         }
+        return spriteSheet;
     }
 
     public void play(int[] colors, boolean once, boolean immediately) {
@@ -449,6 +574,19 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
         }
     }
 
+    private void updateVisibility() {
+        spritePlayer.setVisibility(rotationVisible && !hidden ? View.VISIBLE : View.INVISIBLE);
+    }
+
+    public void setHidden(boolean hidden) {
+        synchronized (getSynchronizer()) {
+            if (this.hidden != hidden) {
+                this.hidden = hidden;
+                updateVisibility();
+            }
+        }
+    }
+
     public void updateTSPRect(Rect rect) {
         boolean apply = !rect.equals(tspRect);
         Slog.d("AOD_TSP", "Anim " + rect.toString() + " apply:" + String.valueOf(apply));
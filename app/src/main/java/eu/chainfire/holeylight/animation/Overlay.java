@@ -32,6 +32,7 @@ import android.graphics.Color;
 import android.graphics.PixelFormat;
 import android.graphics.Point;
 import android.graphics.Rect;
+import android.hardware.display.DisplayManager;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
@@ -55,10 +56,26 @@ import static android.content.Context.POWER_SERVICE;
 
 @SuppressWarnings({"WeakerAccess", "unused", "FieldCanBeLocal"})
 public class Overlay {
+    private static final int DOZE_KEEPALIVE_MS = 100;
+    private static final int LAYOUT_UPDATE_INTERVAL_MS = 16;
+
+    // Hide the overlay window between animations instead of removing it, which saves a window
+    // add/remove round trip through system_server and the surface and sheet setup that follows
+    private static final boolean WARM_WINDOW = true;
+
     private static Overlay instance;
     public static Overlay getInstance(Context context) {
         return getInstance(context, null);
     }
+    // For callers that shouldn't create the overlay if it doesn't exist yet
+    public static void evaluateIfExists(boolean refreshAll) {
+        Overlay overlay;
+        synchronized (Overlay.class) {
+            overlay = instance;
+        }
+        if (overlay != null) overlay.evaluate(refreshAll);
+    }
+
     public static Overlay getInstance(Context context, IBinder windowToken) {
         synchronized (Overlay.class) {
             if (instance == null) {
@@ -151,7 +168,20 @@ public class Overlay {
     private int[] lastColors = new int[0];
     private SpritePlayer.Mode lastMode = SpritePlayer.Mode.SWIRL;
     private int lastDpAdd = 0;
+    private final Object layoutUpdateSync = new Object();
+    private boolean layoutUpdatePending = false;
+    private long lastLayoutUpdate = 0;
+    private final Rect appliedLayout = new Rect();
+    private int layoutUpdates = 0;
+    private int layoutUpdatesDisplayState = -1;
     private boolean added = false;
+    private volatile boolean hidden = false;
+    private volatile Display.State lastDisplayState = null;
+    private final Object evaluateSync = new Object();
+    private boolean evaluatePending = false;
+    private boolean evaluatePendingRefreshAll = false;
+    private long evaluateRequests = 0;
+    private long evaluateExecuted = 0;
     private Point resolution;
     private IBinder windowToken;
     private long lastVisibleTime;
@@ -172,7 +202,7 @@ public class Overlay {
     }
 
     private void pokeWakeLocks(int timeout_ms) {
-        Slog.d("WakeLock", "%d", timeout_ms);
+        if (BuildConfig.DEBUG) Slog.d("WakeLock", "%d", timeout_ms); // called every doze frame, avoid boxing
 
         cpuWakeLock.acquire(timeout_ms);
 
@@ -198,26 +228,19 @@ public class Overlay {
 
             initParams();
             animation = new NotificationAnimation(context, spritePlayer, new NotificationAnimation.OnNotificationAnimationListener() {
-                private int skips = 0;
+                private long lastDraw = 0;
 
                 @Override
                 public void onDimensionsApplied(SpritePlayer view) {
-                    if (added) {
-                        try {
-                            //TODO remove/add adjusts view layout better more consistently, but flickers?
-                            //TODO maybe loop this to fix Unholey Light location sometimes not updating?
-                            windowManager.updateViewLayout(view, view.getLayoutParams());
-                        } catch (IllegalArgumentException e) {
-                            //TODO figure out why this happens
-                            e.printStackTrace();
-                        }
-                    }
+                    requestLayoutUpdate();
                 }
 
                 @Override
                 public boolean onAnimationFrameStart(SpritePlayer view, boolean draw) {
-                    if (draw) skips = 0;
-                    if (Display.isDoze(spritePlayer.getContext())) {
+                    long now = SystemClock.elapsedRealtime();
+                    if (draw) lastDraw = now;
+                    // called every frame, so use the state tracked by displayListener
+                    if (lastDisplayState == Display.State.DOZE) {
                         if (!draw) {
                             // If we were to do slow drawing, we would have to poke
                             // WindowManager, by adjusting the x/y/width/height of the root view
@@ -232,10 +255,11 @@ public class Overlay {
                             // Using updateViewLayout often enough that it would keep our
                             // overlay alive however, triggers about 50% (single-core) CPU usage
                             // in system_server. As such it is cheaper to waste some cycles and
-                            // redraw our overlay regularly. From experimentation, 6 works here.
-                            skips++;
-                            if (skips == 6) {
-                                skips = 0;
+                            // redraw our overlay regularly. From experimentation, every 6 frames
+                            // at 60 fps works here. SpritePlayer only calls us when the frame
+                            // changes or the keep-alive interval passes, so this is time-based.
+                            if (now - lastDraw >= DOZE_KEEPALIVE_MS) {
+                                lastDraw = now;
                                 return true;
                             }
 
@@ -247,7 +271,7 @@ public class Overlay {
 
                 @Override
                 public void onAnimationFrameEnd(SpritePlayer view, boolean draw) {
-                    if (Display.isDoze(spritePlayer.getContext())) {
+                    if (lastDisplayState == Display.State.DOZE) {
                         if (draw) {
                             pokeWakeLocks(250);
                         }
@@ -271,6 +295,12 @@ public class Overlay {
             intentFilter.setPriority(999);
 
             spritePlayer.getContext().getApplicationContext().registerReceiver(broadcastReceiver, intentFilter);
+
+            // Together with the broadcasts above these cover everything evaluate() looks at,
+            // except the AOD schedule, for which AlarmReceiver calls us
+            lastDisplayState = Display.get(context);
+            ((DisplayManager)context.getSystemService(Context.DISPLAY_SERVICE)).registerDisplayListener(displayListener, handler);
+            settings.registerOnSettingsChangedListener(onSettingsChangedListener);
         }
         evaluate(true);
     }
@@ -279,10 +309,37 @@ public class Overlay {
     protected void finalize() throws Throwable {
         if (spritePlayer != null) {
             spritePlayer.getContext().getApplicationContext().unregisterReceiver(broadcastReceiver);
+            ((DisplayManager)spritePlayer.getContext().getSystemService(Context.DISPLAY_SERVICE)).unregisterDisplayListener(displayListener);
+            settings.unregisterOnSettingsChangedListener(onSettingsChangedListener);
         }
         super.finalize();
     }
 
+    private final DisplayManager.DisplayListener displayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId != android.view.Display.DEFAULT_DISPLAY) return;
+
+            // also called for brightness changes, which doze does a lot of
+            Display.State state = Display.get(spritePlayer.getContext());
+            if (state != lastDisplayState) {
+                log("Display: %s --> %s", lastDisplayState, state);
+                lastDisplayState = state;
+                evaluate(true);
+            }
+        }
+    };
+
+    private final Settings.OnSettingsChangedListener onSettingsChangedListener = () -> evaluate(false);
+
     @SuppressLint("RtlHardcoded")
     private void initParams() {
         WindowManager.LayoutParams params = new WindowManager.LayoutParams(
@@ -315,11 +372,19 @@ public class Overlay {
     }
 
     private void createOverlay() {
-        if (added) return;
+        if (added) {
+            if (hidden) {
+                hidden = false;
+                updateParams();
+                animation.setHidden(false);
+            }
+            return;
+        }
         try {
             updateParams();
             added = true; // had a case of a weird exception that caused this to run in a loop if placed after addView
             windowManager.addView(spritePlayer, spritePlayer.getLayoutParams());
+            setAppliedLayout((WindowManager.LayoutParams)spritePlayer.getLayoutParams());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -334,16 +399,82 @@ public class Overlay {
         }
     }
 
+    // Every updateViewLayout is a round trip through system_server, and relayouts there are
+    // expensive. Bursts of dimension changes are collapsed into one call per frame interval, and
+    // calls that wouldn't change anything are dropped.
+    private void requestLayoutUpdate() {
+        synchronized (layoutUpdateSync) {
+            if (layoutUpdatePending) return;
+            layoutUpdatePending = true;
+            long delay = lastLayoutUpdate + LAYOUT_UPDATE_INTERVAL_MS - SystemClock.elapsedRealtime();
+            handler.postDelayed(layoutUpdate, Math.max(delay, 0));
+        }
+    }
+
+    private Runnable layoutUpdate = () -> {
+        synchronized (layoutUpdateSync) {
+            layoutUpdatePending = false;
+        }
+        if (!added) return;
+
+        WindowManager.LayoutParams params = (WindowManager.LayoutParams)spritePlayer.getLayoutParams();
+        if ((params.x == appliedLayout.left) && (params.y == appliedLayout.top) && (params.width == appliedLayout.width()) && (params.height == appliedLayout.height())) {
+            return;
+        }
+        try {
+            //TODO remove/add adjusts view layout better more consistently, but flickers?
+            //TODO maybe loop this to fix Unholey Light location sometimes not updating?
+            windowManager.updateViewLayout(spritePlayer, params);
+            setAppliedLayout(params);
+            lastLayoutUpdate = SystemClock.elapsedRealtime();
+            layoutUpdates++;
+        } catch (IllegalArgumentException e) {
+            //TODO figure out why this happens
+            e.printStackTrace();
+        }
+    };
+
+    private void setAppliedLayout(WindowManager.LayoutParams params) {
+        appliedLayout.set(params.x, params.y, params.x + params.width, params.y + params.height);
+    }
+
+    private void countLayoutUpdates(int displayState) {
+        if (displayState != layoutUpdatesDisplayState) {
+            if (BuildConfig.DEBUG && (layoutUpdatesDisplayState != -1)) {
+                log("updateViewLayout calls while %s: %d", FrameStats.getDisplayName(layoutUpdatesDisplayState), layoutUpdates);
+            }
+            layoutUpdatesDisplayState = displayState;
+            layoutUpdates = 0;
+        }
+    }
+
     private void removeOverlay() {
         if (!added) return;
+        if (WARM_WINDOW) {
+            // may be called from the render thread, views need the main thread
+            handler.post(hideOverlay);
+            return;
+        }
         try {
             windowManager.removeView(spritePlayer);
             added = false;
+            handler.removeCallbacks(layoutUpdate);
+            synchronized (layoutUpdateSync) {
+                layoutUpdatePending = false;
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // Keeps the window attached, but invisible. An invisible window doesn't draw or receive touches.
+    private Runnable hideOverlay = () -> {
+        if (!added || hidden) return;
+        if (animation.isPlaying()) return; // shown again before we got here
+        hidden = true;
+        animation.setHidden(true);
+    };
+
     private boolean colorsChanged() {
         if ((lastColors == null) != (colors == null)) return true;
         if (lastColors == null) return false;
@@ -355,11 +486,33 @@ public class Overlay {
         return false;
     }
 
-    private Runnable evaluateLoop = () -> evaluate(false);
-
+    // Requests arriving before the pending pass runs are merged into it, refreshAll if any of
+    // them asked for it. The pass runs on the main thread.
     public void evaluate(boolean refreshAll) {
+        synchronized (evaluateSync) {
+            evaluateRequests++;
+            evaluatePendingRefreshAll |= refreshAll;
+            if (evaluatePending) return;
+            evaluatePending = true;
+        }
+        handler.post(evaluatePass);
+    }
+
+    private final Runnable evaluatePass = () -> {
+        boolean refreshAll;
+        synchronized (evaluateSync) {
+            refreshAll = evaluatePendingRefreshAll;
+            evaluatePending = false;
+            evaluatePendingRefreshAll = false;
+            evaluateExecuted++;
+            if (BuildConfig.DEBUG) log("evaluate: %d requests, %d executed, %d merged", evaluateRequests, evaluateExecuted, evaluateRequests - evaluateExecuted);
+        }
+        evaluateNow(refreshAll);
+    };
+
+    private void evaluateNow(boolean refreshAll) {
         if (spritePlayer == null) {
-            if (wanted) handler.postDelayed(evaluateLoop, 500);
+            // initActualOverlay evaluates when ready
             return;
         }
 
@@ -381,11 +534,16 @@ public class Overlay {
             visible = true;
             doze = true;
         }
+        spritePlayer.setKeepAliveInterval(doze ? DOZE_KEEPALIVE_MS : 0);
+        spritePlayer.setDisplayState(on, doze);
+        countLayoutUpdates(doze ? FrameStats.DISPLAY_DOZE : on ? FrameStats.DISPLAY_ON : FrameStats.DISPLAY_OFF);
+
         boolean lockscreen = on && keyguardManager.isKeyguardLocked();
         boolean charging = Battery.isCharging(context);
 
         int mode = settings.getMode(charging, !doze);
         SpritePlayer.Mode renderMode = settings.getAnimationMode(mode);
+        spritePlayer.setRenderScale(settings.getRenderScale(mode));
 
         // We don't have the helper package that properly turns off AOD (passive hide) when we want
         // to hide it, but we still want AOD to be invisible: active hide
@@ -432,12 +590,9 @@ public class Overlay {
                 lastState = false;
             }
         }
-
-        if (wantedEffective) handler.postDelayed(evaluateLoop, 500);
     }
 
     public void show(int[] colors) {
-        handler.removeCallbacks(evaluateLoop);
         this.colors = colors;
         wanted = true;
         kill = false;
@@ -445,7 +600,6 @@ public class Overlay {
     }
 
     public void hide(boolean immediately) {
-        handler.removeCallbacks(evaluateLoop);
         wanted = false;
         kill = immediately;
         evaluate(true);
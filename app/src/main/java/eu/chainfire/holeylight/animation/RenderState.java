@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.graphics.Rect;
+
+// Everything SpritePlayer's render thread needs to draw a frame. Instances are never modified
+// after they are published, every change creates a copy. This lets the render thread grab a
+// consistent snapshot without taking a lock.
+@SuppressWarnings({ "WeakerAccess", "unused" })
+final class RenderState {
+    private SpritePlayer.Mode mode = SpritePlayer.Mode.SWIRL;
+    private long modeStart = 0L;
+    private int[] colors = null;
+    private float speed = 1.0f;
+    private int width = -1;
+    private int height = -1;
+    private float renderScale = 1.0f;
+    private Rect dest = new Rect();
+    private Rect destDouble = new Rect();
+    private SpriteSheet spriteSheetSwirl = null;
+    private SpriteSheet spriteSheetBlink = null;
+    private SpriteSheet spriteSheetSingle = null;
+    private boolean drawBackground = false;
+    private int epoch = 0;
+
+    private RenderState copy() {
+        RenderState ret = new RenderState();
+        ret.mode = mode;
+        ret.modeStart = modeStart;
+        ret.colors = colors;
+        ret.speed = speed;
+        ret.width = width;
+        ret.height = height;
+        ret.renderScale = renderScale;
+        ret.dest = dest;
+        ret.destDouble = destDouble;
+        ret.spriteSheetSwirl = spriteSheetSwirl;
+        ret.spriteSheetBlink = spriteSheetBlink;
+        ret.spriteSheetSingle = spriteSheetSingle;
+        ret.drawBackground = drawBackground;
+        ret.epoch = epoch;
+        return ret;
+    }
+
+    RenderState withMode(SpritePlayer.Mode mode, long modeStart) {
+        RenderState ret = copy();
+        ret.mode = mode;
+        ret.modeStart = modeStart;
+        return ret;
+    }
+
+    RenderState withModeStart(long modeStart) {
+        RenderState ret = copy();
+        ret.modeStart = modeStart;
+        return ret;
+    }
+
+    RenderState withColors(int[] colors) {
+        RenderState ret = copy();
+        ret.colors = colors != null ? colors.clone() : null;
+        return ret;
+    }
+
+    RenderState withSpeed(float speed) {
+        RenderState ret = copy();
+        ret.speed = speed;
+        return ret;
+    }
+
+    RenderState withSize(int width, int height) {
+        RenderState ret = copy();
+        ret.width = width;
+        ret.height = height;
+        return ret;
+    }
+
+    // width and height are the surface buffer's size, which is the layout size times renderScale
+    RenderState withRenderScale(float renderScale) {
+        RenderState ret = copy();
+        ret.renderScale = renderScale;
+        return ret;
+    }
+
+    RenderState withDest(int width, int height) {
+        RenderState ret = copy();
+        ret.dest = new Rect(0, 0, width, height);
+        ret.destDouble = new Rect(ret.dest.centerX() - width, ret.dest.centerY() - height, ret.dest.centerX() + width, ret.dest.centerY() + height);
+        return ret;
+    }
+
+    RenderState withSpriteSheet(SpritePlayer.Mode mode, SpriteSheet spriteSheet) {
+        RenderState ret = copy();
+        switch (mode) {
+            case SWIRL: ret.spriteSheetSwirl = spriteSheet; break;
+            case BLINK: ret.spriteSheetBlink = spriteSheet; break;
+            case SINGLE: ret.spriteSheetSingle = spriteSheet; break;
+        }
+        return ret;
+    }
+
+    RenderState withDrawBackground(boolean drawBackground) {
+        RenderState ret = copy();
+        ret.drawBackground = drawBackground;
+        return ret;
+    }
+
+    // Tells the render thread to start the animation from the first frame
+    RenderState restart() {
+        RenderState ret = copy();
+        ret.epoch++;
+        return ret;
+    }
+
+    SpritePlayer.Mode getMode() {
+        return mode;
+    }
+
+    long getModeStart() {
+        return modeStart;
+    }
+
+    int[] getColors() {
+        return colors;
+    }
+
+    float getSpeed() {
+        return speed;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    float getRenderScale() {
+        return renderScale;
+    }
+
+    Rect getDest() {
+        return dest;
+    }
+
+    Rect getDestDouble() {
+        return destDouble;
+    }
+
+    SpriteSheet getSpriteSheet() {
+        return getSpriteSheet(mode);
+    }
+
+    SpriteSheet getSpriteSheet(SpritePlayer.Mode mode) {
+        switch (mode) {
+            case SWIRL: return spriteSheetSwirl;
+            case BLINK: return spriteSheetBlink;
+            case SINGLE: return spriteSheetSingle;
+        }
+        return null;
+    }
+
+    boolean isDrawBackground() {
+        return drawBackground;
+    }
+
+    int getEpoch() {
+        return epoch;
+    }
+}
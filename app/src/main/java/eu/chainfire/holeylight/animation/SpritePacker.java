@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.graphics.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Shelf packer: cells are sorted by height and placed left to right on shelves, a new shelf is
+// started when the current one is full, a new sheet when the shelves reach maxDim. Sheet width is
+// based on the total cell area, so small frame sets end up on small sheets.
+class SpritePacker {
+    static class Result {
+        final int[] sheet;
+        final int[] x;
+        final int[] y;
+        final List<Point> sheetSizes = new ArrayList<>();
+
+        private Result(int count) {
+            sheet = new int[count];
+            x = new int[count];
+            y = new int[count];
+        }
+    }
+
+    static Result pack(int[] widths, int[] heights, int maxDim) {
+        int count = widths.length;
+        Result result = new Result(count);
+        if (count == 0) return result;
+
+        long area = 0;
+        int maxWidth = 0;
+        for (int i = 0; i < count; i++) {
+            area += (long)widths[i] * (long)heights[i];
+            maxWidth = Math.max(maxWidth, widths[i]);
+        }
+        int sheetWidth = Math.min(maxDim, Math.max(maxWidth, (int)Math.ceil(Math.sqrt(area))));
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> heights[a] != heights[b] ? heights[b] - heights[a] : widths[b] - widths[a]);
+
+        int sheet = 0;
+        int shelfX = 0;
+        int shelfY = 0;
+        int shelfHeight = 0;
+        int usedWidth = 0;
+        for (int index : order) {
+            int w = widths[index];
+            int h = heights[index];
+            if (shelfX + w > sheetWidth) {
+                shelfY += shelfHeight;
+                shelfX = 0;
+                shelfHeight = 0;
+            }
+            if ((shelfY + h > maxDim) && (shelfY > 0)) {
+                result.sheetSizes.add(new Point(usedWidth, shelfY));
+                sheet++;
+                shelfX = 0;
+                shelfY = 0;
+                shelfHeight = 0;
+                usedWidth = 0;
+            }
+            result.sheet[index] = sheet;
+            result.x[index] = shelfX;
+            result.y[index] = shelfY;
+            shelfX += w;
+            shelfHeight = Math.max(shelfHeight, h);
+            usedWidth = Math.max(usedWidth, shelfX);
+        }
+        result.sheetSizes.add(new Point(usedWidth, shelfY + shelfHeight));
+
+        return result;
+    }
+}
@@ -19,16 +19,11 @@
 package eu.chainfire.holeylight.animation;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
 import android.graphics.PixelFormat;
 import android.graphics.Point;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffColorFilter;
-import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -39,19 +34,29 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.WindowManager;
 import android.widget.RelativeLayout;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import androidx.annotation.NonNull;
+import eu.chainfire.holeylight.BuildConfig;
+import eu.chainfire.holeylight.misc.Slog;
 
 @SuppressWarnings({ "deprecation", "FieldCanBeLocal", "unused", "UnusedReturnValue" })
 public class SpritePlayer extends RelativeLayout {
     public enum Mode { SWIRL, BLINK, SINGLE, TSP, TSP_HIDE }
 
     private final int TSP_FAST_DRAW_TIME = 10000;
-    private final int TSP_FIRST_DRAW_DELAY = 2000;
+    private final int TSP_SLOW_DRAW_INTERVAL = 8000;
+    private final int TSP_POLL_INTERVAL = 250; // what slow TSP mode used to wake up at
 
     public interface OnSpriteSheetNeededListener {
-        SpriteSheet onSpriteSheetNeeded(int width, int height, Mode mode);
+        SpriteSheet onSpriteSheetNeeded(int width, int height, Mode mode, CancellationSignal cancellationSignal);
     }
 
     public interface OnAnimationListener {
@@ -60,7 +65,10 @@ public class SpritePlayer extends RelativeLayout {
         boolean onAnimationComplete();
     }
 
+    // Serializes changes made from outside the render thread. The render thread itself only
+    // reads renderState, and only takes this lock when the animation completes.
     private final Object sync = new Object();
+    private final AtomicReference<RenderState> renderState = new AtomicReference<>(new RenderState());
 
     private final HandlerThread handlerThreadRender;
     private final HandlerThread handlerThreadLoader;
@@ -68,40 +76,46 @@ public class SpritePlayer extends RelativeLayout {
     private final Handler handlerLoader;
     private final Handler handlerMain;
     private volatile Choreographer choreographer;
+    private boolean frameRequestPending = false;
 
     private final SurfaceView surfaceView;
 
     private volatile OnSpriteSheetNeededListener onSpriteSheetNeededListener = null;
     private volatile OnAnimationListener onAnimationListener = null;
 
-    private final Paint paint = new Paint();
+    private final SpriteRenderer spriteRenderer; // render thread only
+    private final FrameRenderer frameRenderer;
     private final float dpToPx;
 
-    private volatile int frame = -1;
-    private volatile SpriteSheet spriteSheetSwirl = null;
-    private volatile SpriteSheet spriteSheetBlink = null;
-    private volatile SpriteSheet spriteSheetSingle = null;
-    private volatile int spriteSheetLoading = 0;
-    private volatile Point lastSpriteSheetRequest = new Point(0, 0);
-    private volatile Rect dest = new Rect();
-    private volatile Rect destDouble = new Rect();
-    private volatile boolean surfaceInvalidated = true;
+    private final EnumMap<Mode, CancellationSignal> spriteSheetLoading = new EnumMap<>(Mode.class);
+    private int spriteSheetGeneration = 0;
+    private final Point lastSpriteSheetRequest = new Point(0, 0);
+    private final AtomicBoolean surfaceInvalidated = new AtomicBoolean(true);
     private volatile boolean draw = false;
     private volatile boolean wanted = false;
-    private volatile int width = -1;
-    private volatile int height = -1;
-    private volatile int[] colors = null;
-    private volatile float speed = 1.0f;
-    private volatile Mode drawMode = Mode.SWIRL;
-    private volatile boolean drawBackground = false;
-    private volatile long modeStart = 0L;
     private volatile boolean surfaceReady = false;
+    private volatile int keepAliveInterval = 0;
+    private volatile int displayState = FrameStats.DISPLAY_ON;
+    private final FrameStats frameStats = new FrameStats();
+    private final long vsyncIntervalNanos;
+    private int displayX = 0;
+    private int displayY = 0;
+    private int displayWidth = -1;
+    private int displayHeight = -1;
+    private float renderScale = 1.0f;
+    private long tspWakeups = 0;
+    private long tspWakeupsStart = 0;
+    private long tspWakeupsModeStart = 0;
 
     public SpritePlayer(Context context) {
         super(context);
 
         dpToPx = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 1, getContext().getResources().getDisplayMetrics());
 
+        WindowManager windowManager = (WindowManager)context.getSystemService(Context.WINDOW_SERVICE);
+        float refreshRate = windowManager != null ? windowManager.getDefaultDisplay().getRefreshRate() : 60f;
+        vsyncIntervalNanos = (long)(1000000000f / (refreshRate > 0 ? refreshRate : 60f));
+
         handlerThreadRender = new HandlerThread("SpritePlayer#Render");
         handlerThreadRender.start();
         handlerRender = new Handler(handlerThreadRender.getLooper());
@@ -110,15 +124,22 @@ public class SpritePlayer extends RelativeLayout {
         handlerLoader = new Handler(handlerThreadLoader.getLooper());
         handlerMain = new Handler(Looper.getMainLooper());
 
-        paint.setAntiAlias(false);
-        paint.setDither(false);
-        paint.setFilterBitmap(false);
+        spriteRenderer = new SpriteRenderer(dpToPx);
 
+        // The Choreographer has to be created on the render thread. We don't wait for it, frames
+        // requested before it exists are started once it does.
         handlerRender.post(() -> {
             Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            choreographer = Choreographer.getInstance();
+            Choreographer choreographer = Choreographer.getInstance();
+            synchronized (sync) {
+                this.choreographer = choreographer;
+                if (frameRequestPending) {
+                    frameRequestPending = false;
+                    if (draw) callNextFrame(true);
+                }
+            }
         });
-        
+
         RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
 
         surfaceView = new SurfaceView(context);
@@ -128,14 +149,7 @@ public class SpritePlayer extends RelativeLayout {
         surfaceView.setVisibility(View.VISIBLE);
         surfaceView.setLayoutParams(new RelativeLayout.LayoutParams(params));
         addView(surfaceView);
-
-        while (choreographer == null) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                // no action
-            }
-        }
+        frameRenderer = new SurfaceFrameRenderer(surfaceView.getHolder());
     }
 
     @Override
@@ -154,21 +168,20 @@ public class SpritePlayer extends RelativeLayout {
     private SurfaceHolder.Callback2 surfaceCallback = new SurfaceHolder.Callback2() {
         @Override
         public void surfaceRedrawNeeded(SurfaceHolder holder) {
-            surfaceInvalidated = true;
+            invalidateSurface();
         }
 
         @Override
         public void surfaceCreated(SurfaceHolder holder) {
-            surfaceInvalidated = true;
             surfaceReady = true;
+            invalidateSurface();
         }
 
         @Override
         public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
             synchronized (sync) {
-                SpritePlayer.this.width = width;
-                SpritePlayer.this.height = height;
-                callOnSpriteSheetNeeded(width, height);
+                renderState.set(renderState.get().withSize(width, height).withDest(width, height));
+                callOnSpriteSheetNeeded();
             }
         }
 
@@ -179,7 +192,15 @@ public class SpritePlayer extends RelativeLayout {
         }
     };
 
-    private boolean colorsChanged(int[] lastColors) {
+    private void invalidateSurface() {
+        // we may be sleeping until the next frame change, which can be seconds away
+        synchronized (sync) {
+            surfaceInvalidated.set(true);
+            if (draw) callNextFrame(true);
+        }
+    }
+
+    private static boolean colorsChanged(int[] lastColors, int[] colors) {
         if ((lastColors == null) != (colors == null)) return true;
         if (lastColors == null) return false;
         if (lastColors.length != colors.length) return true;
@@ -190,257 +211,348 @@ public class SpritePlayer extends RelativeLayout {
         return false;
     }
 
-    @SuppressWarnings("all")
-    private void renderFrame(Canvas canvas, SpriteSheet spriteSheet, int frame, float startAngle, float radiusDecrease) {
-        if (drawBackground) {
-            canvas.drawColor(Color.BLACK, PorterDuff.Mode.SRC);
-        } else if (!canvas.isHardwareAccelerated()) {
-            // on hardware accelerated canvas the content is already cleared
-            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-        }
-        if (isTSPMode()) {
-            // TSP_HIDE is a no_op, background drawn already, we only handle it at all because
-            // rendering here causes the rest of the screen to be updated as well
-            //
-            // We delay a short time to prevent the circle jumping around on first show, due to
-            // AOD start TSP rect updates
-            if ((drawMode == Mode.TSP) && (SystemClock.elapsedRealtime() - modeStart > TSP_FIRST_DRAW_DELAY)) {
-                paint.setColorFilter(null);
-                paint.setXfermode(null);
-
-                float left = radiusDecrease;
-                float top = radiusDecrease;
-                float width = this.width - (radiusDecrease * 2f);
-                float height = this.height - (radiusDecrease * 2f);
-                float right = left + width;
-                float bottom = top + height;
-                float cx = left + (width / 2f);
-                float cy = top + (height / 2f);
-                float radius = (width / 2f) - (8f * dpToPx);
-
-                float anglePerColor = 360f / colors.length;
-                for (int i = 0; i < colors.length; i++) {
-                    paint.setColor(colors[i]);
-                    canvas.drawArc(left, top, right, bottom, startAngle + 270 + (anglePerColor * i), anglePerColor, true, paint);
-                }
-
-                if (drawBackground) {
-                    paint.setColor(Color.BLACK);
-                } else {
-                    paint.setColor(Color.TRANSPARENT);
-                    paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
-                }
-                canvas.drawCircle(cx, cy, radius, paint);
-            }
-        } else if (spriteSheet != null) {
-            paint.setXfermode(null);
-            paint.setColor(Color.WHITE);
-            SpriteSheet.Sprite sprite = spriteSheet.getFrame(frame);
-            Bitmap bitmap = sprite.getBitmap();
-            if ((colors != null) && (colors.length == 1)) {
-                // fast single-color mode
-                paint.setColorFilter(new PorterDuffColorFilter(colors[0], PorterDuff.Mode.SRC_ATOP));
-                if (!bitmap.isRecycled()) {
-                    canvas.drawBitmap(sprite.getBitmap(), sprite.getArea(), dest, paint);
-                }
-            } else {
-                // slower multi-colored mode
-                paint.setColorFilter(null);
-                if (!bitmap.isRecycled()) {
-                    canvas.drawBitmap(sprite.getBitmap(), sprite.getArea(), dest, paint);
-                }
-
-                paint.setXfermode(new PorterDuffXfermode(drawBackground ? PorterDuff.Mode.MULTIPLY : PorterDuff.Mode.SRC_ATOP));
-
-                float anglePerColor = 360f / colors.length;
-                for (int i = 0; i < colors.length; i++) {
-                    // we use double size here because the arc may cut off the larger S10+ animation otherwise
-                    paint.setColor(colors[i]);
-                    canvas.drawArc(destDouble.left, destDouble.top, destDouble.right, destDouble.bottom, startAngle + 270 + (anglePerColor * i), anglePerColor, true, paint);
+    private void clearSurface() {
+        try {
+            Canvas canvas = frameRenderer.lockCanvas(null);
+            if (canvas != null) {
+                try {
+                    SpriteRenderer.clear(canvas);
+                } finally {
+                    frameRenderer.unlockCanvasAndPost(canvas);
                 }
             }
+        } catch (Throwable t) {
+            // ...
         }
     }
 
     private Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        // only accessed from the render thread
+        private int frame = -1;
+        private int epoch = -1;
         private long startTimeNanos = 0;
-        private int lastFrameDrawn = -1;
+        private SpriteSheet.Sprite lastSpriteDrawn = null;
         private int[] lastColors = null;
+        private final Rect lastSpriteRect = new Rect();
+        private final Rect dirty = new Rect();
+        private long expectedFrameTimeNanos = 0;
 
         @Override
         public void doFrame(long frameTimeNanos) {
-            synchronized (sync) {
-                // Software canvas 2x quicker than hardware during tests
-                SpriteSheet spriteSheet = getSpriteSheet();
-                if (draw && surfaceReady) {
-                    // AOD changes position every 10 minutes to prevent burn-in, so that's
-                    // as good a base as any to base our own burn-in protection on.
-                    // We rotate our colors throughout the circle, and change the radius
-                    final int cycle_ms =  10 * 60 * 1000;
-                    long diff = SystemClock.elapsedRealtime() - modeStart;
-                    float cycle_part = (diff % cycle_ms) / (float)cycle_ms;
-
-                    if (isTSPMode()) {
-                        boolean draw;
-                        if ((startTimeNanos == 0) || (diff <= TSP_FAST_DRAW_TIME)) {
-                            draw = true;
-                        } else {
-                            draw = (frameTimeNanos - startTimeNanos >= 8000000000L);
-                        }
-                        draw |= surfaceInvalidated;
-                        surfaceInvalidated = false;
+            long nextFrameNanos = 0;
+
+            // read and clear once, before the state snapshot: state is published before the
+            // invalidation, later invalidations are picked up by the next frame
+            boolean invalidated = surfaceInvalidated.getAndSet(false);
+            RenderState state = renderState.get();
+            if (state.getEpoch() != epoch) {
+                epoch = state.getEpoch();
+                frame = -1;
+            }
 
-                        if (onAnimationListener != null) {
-                            onAnimationListener.onAnimationFrameStart(draw); // intentionally ignore result
-                        }
-                        if (draw) {
-                            Canvas canvas = surfaceView.getHolder().lockCanvas();
-                            if (canvas != null) {
-                                try {
-                                    renderFrame(canvas, null, 0, cycle_part * 360f, cycle_part * 16f * dpToPx);
-                                } finally {
-                                    try {
-                                        surfaceView.getHolder().unlockCanvasAndPost(canvas);
-                                    } catch (IllegalStateException e) {
-                                        // no action
-                                    }
-                                }
-                            }
-                            startTimeNanos = frameTimeNanos;
-                        }
-                        if (onAnimationListener != null) {
-                            onAnimationListener.onAnimationFrameEnd(draw);
-                        }
-                    } else if (spriteSheet == null) { // still loading
-                        if (onAnimationListener != null) {
-                            onAnimationListener.onAnimationFrameStart(true); // intentionally ignore result
-                        }
+            // vsyncs passed since the one we asked for. Calls made early by invalidation or
+            // keep-alive count as on time.
+            if (expectedFrameTimeNanos > 0) {
+                frameStats.recordMissed(state.getMode(), displayState, (frameTimeNanos - expectedFrameTimeNanos) / vsyncIntervalNanos);
+                expectedFrameTimeNanos = 0;
+            }
 
-                        Canvas canvas = surfaceView.getHolder().lockCanvas();
-                        if (canvas != null) {
-                            try {
-                                renderFrame(canvas, null, 0, 0f, 0f);
-                            } finally {
-                                try {
-                                    surfaceView.getHolder().unlockCanvasAndPost(canvas);
-                                } catch (IllegalStateException e) {
-                                    // no action
-                                }
-                            }
-                        }
+            // Software canvas 2x quicker than hardware during tests
+            SpriteSheet spriteSheet = state.getSpriteSheet();
+            if (draw && surfaceReady) {
+                // AOD changes position every 10 minutes to prevent burn-in, so that's
+                // as good a base as any to base our own burn-in protection on.
+                // We rotate our colors throughout the circle, and change the radius
+                final int cycle_ms =  10 * 60 * 1000;
+                long diff = SystemClock.elapsedRealtime() - state.getModeStart();
+                float cycle_part = (diff % cycle_ms) / (float)cycle_ms;
+
+                if (isTSPMode(state.getMode())) {
+                    boolean slow = (startTimeNanos != 0) && (diff > TSP_FAST_DRAW_TIME);
+                    boolean draw;
+                    if (!slow) {
+                        draw = true;
+                    } else {
+                        draw = (frameTimeNanos - startTimeNanos >= TSP_SLOW_DRAW_INTERVAL * 1000000L);
+                    }
+                    draw |= invalidated;
 
-                        if (onAnimationListener != null) {
-                            onAnimationListener.onAnimationFrameEnd(true);
-                        }
-                    } else { // ready
-                        if (frame == -1) {
-                            startTimeNanos = frameTimeNanos;
-                            frame = 0;
-                        } else {
-                            double frameTime = (double)1000000000 / ((double)spriteSheet.getFrameRate() * (double)speed);
-                            frame = (int)Math.floor((double)(frameTimeNanos - startTimeNanos)/frameTime);
+                    if (onAnimationListener != null) {
+                        onAnimationListener.onAnimationFrameStart(draw); // intentionally ignore result
+                    }
+                    if (draw) {
+                        // TSP_HIDE only draws the background, which is already on the surface
+                        // unless invalidated, we only draw to get the rest of the screen updated
+                        Rect dirty = null;
+                        if ((state.getMode() == Mode.TSP_HIDE) && !invalidated) {
+                            dirty = this.dirty;
+                            dirty.setEmpty();
                         }
+                        drawFrame(state, dirty, null, 0, cycle_part * 360f, cycle_part * 16f * dpToPx * state.getRenderScale());
+                        startTimeNanos = frameTimeNanos;
+                    }
+                    if (onAnimationListener != null) {
+                        onAnimationListener.onAnimationFrameEnd(draw);
+                    }
+                    if (slow) {
+                        // one wakeup at the next required draw, invalidation and color
+                        // changes reschedule us immediately
+                        nextFrameNanos = startTimeNanos + TSP_SLOW_DRAW_INTERVAL * 1000000L;
+                        countTSPWakeup(state, draw);
+                    }
+                } else if (spriteSheet == null) { // still loading
+                    if (onAnimationListener != null) {
+                        onAnimationListener.onAnimationFrameStart(true); // intentionally ignore result
+                    }
 
-                        int drawFrame = Math.max(Math.min(frame, spriteSheet.getFrames() - 1), 0);
-                        boolean doDraw = ((drawFrame != lastFrameDrawn) || colorsChanged(lastColors) || surfaceInvalidated);
-                        if (onAnimationListener != null) {
-                            doDraw = onAnimationListener.onAnimationFrameStart(doDraw);
-                        }
-                        if (doDraw) {
-                            surfaceInvalidated = false;
-                            lastFrameDrawn = drawFrame;
-                            lastColors = colors;
-
-                            Canvas canvas = surfaceView.getHolder().lockCanvas();
-                            if (canvas != null) {
-                                try {
-                                    renderFrame(canvas, spriteSheet, drawFrame, cycle_part * 360f, 0f);
-                                } finally {
-                                    try {
-                                        surfaceView.getHolder().unlockCanvasAndPost(canvas);
-                                    } catch (IllegalStateException e) {
-                                        // no action
-                                    }
-                                }
-                            }
+                    drawFrame(state, null, null, 0, 0f, 0f);
+
+                    if (onAnimationListener != null) {
+                        onAnimationListener.onAnimationFrameEnd(true);
+                    }
+                } else { // ready
+                    double frameTime = (double)1000000000 / ((double)spriteSheet.getFrameRate() * (double)state.getSpeed());
+                    if (frame == -1) {
+                        startTimeNanos = frameTimeNanos;
+                        frame = 0;
+                    } else {
+                        frame = (int)Math.floor((double)(frameTimeNanos - startTimeNanos)/frameTime);
+                    }
+
+                    int drawFrame = Math.max(Math.min(frame, spriteSheet.getFrames() - 1), 0);
+                    // identical frames share a Sprite, no need to redraw what is already on the surface
+                    SpriteSheet.Sprite drawSprite = spriteSheet.getFrame(drawFrame);
+
+                    // sleep until the sprite on screen changes, or the animation ends
+                    if (frame < spriteSheet.getFrames()) {
+                        int nextFrame = drawFrame + 1;
+                        while ((nextFrame < spriteSheet.getFrames()) && (spriteSheet.getFrame(nextFrame) == drawSprite)) {
+                            nextFrame++;
                         }
-                        if (onAnimationListener != null) {
-                            onAnimationListener.onAnimationFrameEnd(doDraw);
+                        nextFrameNanos = startTimeNanos + (long)Math.ceil(nextFrame * frameTime);
+                    }
+                    boolean colorsChanged = colorsChanged(lastColors, state.getColors());
+                    boolean doDraw = ((drawSprite != lastSpriteDrawn) || colorsChanged || invalidated);
+                    if (onAnimationListener != null) {
+                        doDraw = onAnimationListener.onAnimationFrameStart(doDraw);
+                    }
+                    if (invalidated && !doDraw) {
+                        // the listener skipped this frame, keep the invalidation for the next one
+                        surfaceInvalidated.set(true);
+                    }
+                    if (doDraw) {
+                        // only the area of the previous and the next sprite changes, unless
+                        // something else changed as well
+                        Rect dirty = null;
+                        if (!invalidated && !colorsChanged) {
+                            dirty = this.dirty;
+                            SpriteRenderer.getSpriteRect(state, spriteSheet, drawSprite, dirty);
+                            dirty.union(lastSpriteRect);
                         }
-                        if (frame >= spriteSheet.getFrames()) {
-                            frame = -1;
+                        SpriteRenderer.getSpriteRect(state, spriteSheet, drawSprite, lastSpriteRect);
+
+                        lastSpriteDrawn = drawSprite;
+                        lastColors = state.getColors();
+
+                        drawFrame(state, dirty, spriteSheet, drawFrame, cycle_part * 360f, 0f);
+                    }
+                    if (onAnimationListener != null) {
+                        onAnimationListener.onAnimationFrameEnd(doDraw);
+                    }
+                    if (frame >= spriteSheet.getFrames()) {
+                        frame = -1;
+                        // the listener decides whether we continue, which has to be atomic with
+                        // changes made from other threads
+                        synchronized (sync) {
                             if ((onAnimationListener == null) || !onAnimationListener.onAnimationComplete()) {
                                 draw = false;
                             }
                         }
                     }
                 }
-                if (draw) callNextFrame(!surfaceReady);
+            } else if (invalidated) {
+                surfaceInvalidated.set(true);
+            }
+            if (draw) {
+                if ((nextFrameNanos > 0) && surfaceReady) {
+                    callNextFrameAt(nextFrameNanos);
+                    expectedFrameTimeNanos = nextFrameNanos;
+                } else {
+                    callNextFrame(!surfaceReady);
+                    expectedFrameTimeNanos = frameTimeNanos + vsyncIntervalNanos;
+                }
+                // TSP runs from a handler rather than vsync
+                if (isTSPMode(state.getMode())) expectedFrameTimeNanos = 0;
             }
         }
     };
 
+    private void drawFrame(RenderState state, Rect dirty, SpriteSheet spriteSheet, int frame, float startAngle, float radiusDecrease) {
+        long lockStart = System.nanoTime();
+        Canvas canvas = frameRenderer.lockCanvas(dirty);
+        long renderStart = System.nanoTime();
+        if (canvas == null) {
+            // the surface kept its old content while the last drawn sprite was already updated,
+            // a partial redraw on top of that would leave stale pixels behind
+            surfaceInvalidated.set(true);
+            return;
+        }
+        try {
+            spriteRenderer.renderFrame(canvas, state, spriteSheet, frame, startAngle, radiusDecrease);
+        } finally {
+            long postStart = System.nanoTime();
+            frameRenderer.unlockCanvasAndPost(canvas);
+            long postEnd = System.nanoTime();
+
+            int display = displayState;
+            frameStats.recordStage(state.getMode(), display, FrameStats.STAGE_LOCK, renderStart - lockStart);
+            frameStats.recordStage(state.getMode(), display, FrameStats.STAGE_RENDER, postStart - renderStart);
+            frameStats.recordStage(state.getMode(), display, FrameStats.STAGE_POST, postEnd - postStart);
+        }
+    }
+
     private Runnable tspFrame = () -> frameCallback.doFrame(System.nanoTime());
 
     private void cancelNextFrame() {
+        frameRequestPending = false;
         handlerRender.removeCallbacks(tspFrame);
-        choreographer.removeFrameCallback(frameCallback);
+        Choreographer choreographer = this.choreographer;
+        if (choreographer != null) choreographer.removeFrameCallback(frameCallback);
+    }
+
+    // Only true before the render thread has created the Choreographer, all frame requests are
+    // made from the render thread or while holding sync at that point
+    private boolean isFrameRequestQueued() {
+        if (choreographer != null) return false;
+        frameRequestPending = true;
+        return true;
     }
 
     private void callNextFrame(boolean immediately) {
         cancelNextFrame();
-        if (immediately) surfaceInvalidated = true;
-        if (isTSPMode() && ((Math.abs(SystemClock.elapsedRealtime() - modeStart) > TSP_FAST_DRAW_TIME) || immediately)) {
+        if (immediately) surfaceInvalidated.set(true);
+        if (isFrameRequestQueued()) return;
+        if (isTSPMode() && ((Math.abs(SystemClock.elapsedRealtime() - renderState.get().getModeStart()) > TSP_FAST_DRAW_TIME) || immediately)) {
             handlerRender.postDelayed(tspFrame, immediately ? 0 : 250);
         } else {
             choreographer.postFrameCallback(frameCallback);
         }
     }
 
+    private void callNextFrameAt(long frameTimeNanos) {
+        cancelNextFrame();
+        if (isFrameRequestQueued()) return;
+        long delay = frameTimeNanos - System.nanoTime();
+        if (isTSPMode()) {
+            // TSP ignores the listener's keep-alive, and doesn't use vsync once slow
+            handlerRender.postDelayed(tspFrame, Math.max(0, delay / 1000000L));
+            return;
+        }
+        if (keepAliveInterval > 0) {
+            delay = Math.min(delay, keepAliveInterval * 1000000L);
+        }
+        // the callback runs on the first vsync after the delay
+        long delayMs = delay / 1000000L;
+        if (delayMs > 0) {
+            choreographer.postFrameCallbackDelayed(frameCallback, delayMs);
+        } else {
+            choreographer.postFrameCallback(frameCallback);
+        }
+    }
+
+    private void countTSPWakeup(RenderState state, boolean draw) {
+        // Handler delays run on uptime, so that is what we compare against
+        long now = SystemClock.uptimeMillis();
+        if ((tspWakeupsStart == 0) || (tspWakeupsModeStart != state.getModeStart())) {
+            tspWakeupsStart = now;
+            tspWakeupsModeStart = state.getModeStart();
+            tspWakeups = 0;
+        }
+        tspWakeups++;
+        if (draw && BuildConfig.DEBUG) { // don't box in release builds
+            long elapsed = Math.max(now - tspWakeupsStart, 1);
+            Slog.d("TSP", "Wakeups %d/h, polling would be %d/h", tspWakeups * 3600000L / elapsed, 3600000L / TSP_POLL_INTERVAL);
+        }
+    }
+
+    // Sprite sheets are built at the display area's size regardless of renderScale, and scaled
+    // into the surface buffer while drawing, so scale changes don't cause them to be reloaded
+    private void callOnSpriteSheetNeeded() {
+        synchronized (sync) {
+            if ((displayWidth > 0) && (displayHeight > 0)) {
+                callOnSpriteSheetNeeded(displayWidth, displayHeight);
+            } else {
+                RenderState state = renderState.get();
+                callOnSpriteSheetNeeded(state.getWidth(), state.getHeight());
+            }
+        }
+    }
+
     private void callOnSpriteSheetNeeded(int width, int height) {
         synchronized (sync) {
             if (isTSPMode()) {
-                surfaceInvalidated = true;
+                surfaceInvalidated.set(true);
                 evaluate();
                 return;
             }
             if (onSpriteSheetNeededListener == null) return;
-            if (
-                (spriteSheetSwirl != null) && (spriteSheetSwirl.getWidth() == width) && (spriteSheetSwirl.getHeight() == height) &&
-                (spriteSheetBlink != null) && (spriteSheetBlink.getWidth() == width) && (spriteSheetBlink.getHeight() == height) &&
-                (spriteSheetSingle != null) && (spriteSheetSingle.getWidth() == width) && (spriteSheetSingle.getHeight() == height)
-            ) return;
-            if ((lastSpriteSheetRequest.x == width) && (lastSpriteSheetRequest.y == height)) return;
-            lastSpriteSheetRequest.set(width, height);
-            if (spriteSheetLoading == 0) {
-                resetSpriteSheet(null);
+            if ((lastSpriteSheetRequest.x != width) || (lastSpriteSheetRequest.y != height)) {
+                lastSpriteSheetRequest.set(width, height);
+                if (spriteSheetLoading.isEmpty()) {
+                    resetSpriteSheet(null);
+                } else {
+                    // abort builds for the old size rather than holding two atlases in memory
+                    spriteSheetGeneration++;
+                    for (CancellationSignal cancellationSignal : spriteSheetLoading.values()) {
+                        cancellationSignal.cancel();
+                    }
+                }
             }
-            dest.set(0, 0, width, height);
-            destDouble.set(dest.centerX() - width, dest.centerY() - height, dest.centerX() + width, dest.centerY() + height);
-            spriteSheetLoading++;
-            handlerLoader.post(() -> {
+            // Only the mode we're showing is needed now, the others are loaded when we switch to them
+            loadSpriteSheet(getMode());
+        }
+    }
+
+    private void loadSpriteSheet(Mode mode) {
+        synchronized (sync) {
+            if (isTSPMode(mode) || (onSpriteSheetNeededListener == null)) return;
+
+            final int width = lastSpriteSheetRequest.x;
+            final int height = lastSpriteSheetRequest.y;
+            if ((width <= 0) || (height <= 0)) return;
+            if (isSpriteSheetCurrent(mode, width, height) || spriteSheetLoading.containsKey(mode)) return;
+
+            final int generation = spriteSheetGeneration;
+            final CancellationSignal cancellationSignal = new CancellationSignal();
+            spriteSheetLoading.put(mode, cancellationSignal);
+            Runnable load = () -> {
                 OnSpriteSheetNeededListener listener;
                 synchronized (sync) {
                     listener = onSpriteSheetNeededListener;
                 }
-                if (listener != null) {
-                    SpriteSheet spriteSheetSwirl = listener.onSpriteSheetNeeded(width, height, Mode.SWIRL);
-                    SpriteSheet spriteSheetBlink = listener.onSpriteSheetNeeded(width, height, Mode.BLINK);
-                    SpriteSheet spriteSheetSingle = listener.onSpriteSheetNeeded(width, height, Mode.SINGLE);
-                    synchronized (sync) {
-                        setSpriteSheet(spriteSheetSwirl, Mode.SWIRL);
-                        setSpriteSheet(spriteSheetBlink, Mode.BLINK);
-                        setSpriteSheet(spriteSheetSingle, Mode.SINGLE);
-                        spriteSheetLoading--;
-                        surfaceInvalidated = true;
-                        evaluate();
-                    }
-                } else {
-                    synchronized (sync) {
-                        spriteSheetLoading--;
+                SpriteSheet spriteSheet = null;
+                if ((listener != null) && !cancellationSignal.isCanceled()) {
+                    spriteSheet = listener.onSpriteSheetNeeded(width, height, mode, cancellationSignal);
+                }
+                synchronized (sync) {
+                    spriteSheetLoading.remove(mode);
+                    if ((generation == spriteSheetGeneration) && !cancellationSignal.isCanceled()) {
+                        if (spriteSheet != null) setSpriteSheet(spriteSheet, mode);
+                    } else {
+                        // size changed while we were loading
+                        if (spriteSheet != null) spriteSheet.recycle();
+                        if ((listener != null) && (mode == getMode())) loadSpriteSheet(mode);
                     }
+                    surfaceInvalidated.set(true);
+                    evaluate();
                 }
-            });
+            };
+            // the mode on screen goes ahead of anything already queued
+            if (mode == getMode()) {
+                handlerLoader.postAtFrontOfQueue(load);
+            } else {
+                handlerLoader.post(load);
+            }
         }
     }
 
@@ -449,12 +561,9 @@ public class SpritePlayer extends RelativeLayout {
             if (this.onSpriteSheetNeededListener == onSpriteSheetNeededListener) return;
 
             this.onSpriteSheetNeededListener = onSpriteSheetNeededListener;
-            if (
-                    (width != -1) && (height != -1) &&
-                    !((spriteSheetSwirl != null) && (spriteSheetSwirl.getWidth() == width) && spriteSheetSwirl.getHeight() == height) &&
-                    !((spriteSheetBlink != null) && (spriteSheetBlink.getWidth() == width) && spriteSheetBlink.getHeight() == height)
-            ) {
-                callOnSpriteSheetNeeded(width, height);
+            RenderState state = renderState.get();
+            if ((state.getWidth() != -1) && (state.getHeight() != -1)) {
+                callOnSpriteSheetNeeded();
             }
         }
     }
@@ -465,68 +574,46 @@ public class SpritePlayer extends RelativeLayout {
 
     private void resetSpriteSheet(Mode mode) {
         synchronized (sync) {
-            if ((mode == null) || (drawMode == mode)) {
-                frame = -1;
-            }
-            if ((mode == null) || (mode == Mode.SWIRL)) {
-                SpriteSheet old = spriteSheetSwirl;
-                spriteSheetSwirl = null;
-                if (old != null) old.recycle();
-            }
-            if ((mode == null) || (mode == Mode.BLINK)) {
-                SpriteSheet old = spriteSheetBlink;
-                spriteSheetBlink = null;
-                if (old != null) old.recycle();
-            }
-            if ((mode == null) || (mode == Mode.SINGLE)) {
-                SpriteSheet old = spriteSheetSingle;
-                spriteSheetSingle = null;
-                if (old != null) old.recycle();
-            }
-            if ((mode == null) || (drawMode == mode)) {
-                surfaceInvalidated = true;
-                try {
-                    Canvas canvas = surfaceView.getHolder().lockCanvas();
-                    try {
-                        if (!canvas.isHardwareAccelerated()) {
-                            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-                        }
-                    } finally {
-                        surfaceView.getHolder().unlockCanvasAndPost(canvas);
-                    }
-                } catch (Throwable t) {
-                    // ...
+            RenderState state = renderState.get();
+            boolean current = (mode == null) || (state.getMode() == mode);
+
+            List<SpriteSheet> old = new ArrayList<>();
+            for (Mode m : new Mode[] { Mode.SWIRL, Mode.BLINK, Mode.SINGLE }) {
+                if ((mode == null) || (mode == m)) {
+                    SpriteSheet spriteSheet = state.getSpriteSheet(m);
+                    if (spriteSheet != null) old.add(spriteSheet);
+                    state = state.withSpriteSheet(m, null);
                 }
             }
+            if (current) state = state.restart();
+            renderState.set(state);
+            if (current) surfaceInvalidated.set(true);
+
+            // The render thread may still be drawing from the old sheets, so recycle them there,
+            // after the frame in progress
+            handlerRender.post(() -> {
+                for (SpriteSheet spriteSheet : old) {
+                    spriteSheet.recycle();
+                }
+                if (current) clearSurface();
+            });
         }
     }
 
     public void setSpriteSheet(SpriteSheet spriteSheet, Mode mode) {
         synchronized (sync) {
-            if (
-                    ((mode == Mode.SWIRL) && (spriteSheet == this.spriteSheetSwirl)) ||
-                    ((mode == Mode.BLINK) && (spriteSheet == this.spriteSheetBlink)) ||
-                    ((mode == Mode.SINGLE) && (spriteSheet == this.spriteSheetSingle))
-            ) return;
+            if (spriteSheet == renderState.get().getSpriteSheet(mode)) return;
             resetSpriteSheet(mode);
-            switch (mode) {
-                case SWIRL:
-                    this.spriteSheetSwirl = spriteSheet;
-                    break;
-                case BLINK:
-                    this.spriteSheetBlink = spriteSheet;
-                    break;
-                case SINGLE:
-                    this.spriteSheetSingle = spriteSheet;
-                    break;
-            }
+            renderState.set(renderState.get().withSpriteSheet(mode, spriteSheet));
             evaluate();
         }
     }
 
     public void setColors(int[] colors) {
         synchronized (sync) {
-            this.colors = colors;
+            // NotificationAnimation sets the colors again after every cycle
+            if (!colorsChanged(renderState.get().getColors(), colors)) return;
+            renderState.set(renderState.get().withColors(colors));
             callNextFrame(true);
         }
     }
@@ -534,7 +621,7 @@ public class SpritePlayer extends RelativeLayout {
     private void startUpdating() {
         synchronized (sync) {
             if (!draw) {
-                modeStart = SystemClock.elapsedRealtime();
+                renderState.set(renderState.get().withModeStart(SystemClock.elapsedRealtime()));
             }
             draw = true;
             callNextFrame(true);
@@ -543,6 +630,7 @@ public class SpritePlayer extends RelativeLayout {
 
     private void stopUpdating() {
         synchronized (sync) {
+            if (draw && BuildConfig.DEBUG) frameStats.log("FrameStats");
             draw = false;
             cancelNextFrame();
         }
@@ -550,7 +638,7 @@ public class SpritePlayer extends RelativeLayout {
 
     private void evaluate() {
         synchronized (sync) {
-            if (wanted && ((getSpriteSheet() != null) || (spriteSheetLoading > 0) || isTSPMode()) && (getWindowVisibility() == View.VISIBLE) && (getVisibility() == View.VISIBLE)) {
+            if (wanted && ((getSpriteSheet() != null) || spriteSheetLoading.containsKey(getMode()) || isTSPMode()) && (getWindowVisibility() == View.VISIBLE) && (getVisibility() == View.VISIBLE)) {
                 startUpdating();
             } else {
                 stopUpdating();
@@ -561,7 +649,7 @@ public class SpritePlayer extends RelativeLayout {
     public void playAnimation() {
         synchronized (sync) {
             wanted = true;
-            frame = -1;
+            renderState.set(renderState.get().restart());
             evaluate();
         }
     }
@@ -579,36 +667,35 @@ public class SpritePlayer extends RelativeLayout {
 
     public void setSpeed(float speed) {
         synchronized (sync) {
-            frame = -1;
-            this.speed = speed;
+            renderState.set(renderState.get().withSpeed(speed).restart());
         }
     }
 
     public Mode getMode() {
-        return drawMode;
+        return renderState.get().getMode();
     }
 
     public void setMode(Mode mode) {
         synchronized (sync) {
-            if (mode != drawMode) {
-                frame = -1;
-                modeStart = SystemClock.elapsedRealtime();
-                drawMode = mode;
-                surfaceInvalidated = true;
+            RenderState state = renderState.get();
+            if (mode != state.getMode()) {
+                renderState.set(state.withMode(mode, SystemClock.elapsedRealtime()).restart());
+                surfaceInvalidated.set(true);
+                if (!isTSPMode(mode) && (state.getWidth() > 0) && (state.getHeight() > 0)) {
+                    callOnSpriteSheetNeeded();
+                }
                 evaluate();
             }
         }
     }
 
     private SpriteSheet getSpriteSheet() {
-        synchronized (sync) {
-            switch (drawMode) {
-                case SWIRL: return spriteSheetSwirl;
-                case BLINK: return spriteSheetBlink;
-                case SINGLE: return spriteSheetSingle;
-            }
-            return null;
-        }
+        return renderState.get().getSpriteSheet();
+    }
+
+    private boolean isSpriteSheetCurrent(Mode mode, int width, int height) {
+        SpriteSheet spriteSheet = renderState.get().getSpriteSheet(mode);
+        return (spriteSheet != null) && (spriteSheet.getWidth() == width) && (spriteSheet.getHeight() == height);
     }
 
     public void updateDisplayArea(Rect rect) {
@@ -617,6 +704,11 @@ public class SpritePlayer extends RelativeLayout {
 
     public void updateDisplayArea(int x, int y, int width, int height) {
         synchronized (sync) {
+            displayX = x;
+            displayY = y;
+            displayWidth = width;
+            displayHeight = height;
+
             RelativeLayout.LayoutParams params;
 
             params = (RelativeLayout.LayoutParams)surfaceView.getLayoutParams();
@@ -626,17 +718,40 @@ public class SpritePlayer extends RelativeLayout {
             params.height = height;
             surfaceView.setLayoutParams(params);
 
-            this.width = width;
-            this.height = height;
+            // below 1.0 we render to a smaller buffer and let the hardware composer upscale it
+            int bufferWidth = width;
+            int bufferHeight = height;
+            if (renderScale < 1.0f) {
+                bufferWidth = Math.max(1, Math.round(width * renderScale));
+                bufferHeight = Math.max(1, Math.round(height * renderScale));
+                surfaceView.getHolder().setFixedSize(bufferWidth, bufferHeight);
+            } else {
+                surfaceView.getHolder().setSizeFromLayout();
+            }
 
-            callOnSpriteSheetNeeded(width, height);
+            renderState.set(renderState.get().withSize(bufferWidth, bufferHeight).withDest(bufferWidth, bufferHeight).withRenderScale(renderScale));
+
+            callOnSpriteSheetNeeded();
+        }
+    }
+
+    // Fraction of the display area's resolution the surface is rendered at
+    public void setRenderScale(float renderScale) {
+        renderScale = Math.min(Math.max(renderScale, 0.25f), 1.0f);
+        synchronized (sync) {
+            if (this.renderScale != renderScale) {
+                this.renderScale = renderScale;
+                if ((displayWidth > 0) && (displayHeight > 0)) {
+                    updateDisplayArea(displayX, displayY, displayWidth, displayHeight);
+                }
+            }
         }
     }
 
     public void invalidateDisplayArea() {
         synchronized (sync) {
             if (draw) {
-                surfaceInvalidated = true;
+                surfaceInvalidated.set(true);
                 callNextFrame(true);
             }
         }
@@ -644,19 +759,35 @@ public class SpritePlayer extends RelativeLayout {
 
     public void setDrawBackground(boolean drawBackground) {
         synchronized (sync) {
-            if (this.drawBackground != drawBackground) {
-                this.drawBackground = drawBackground;
-                surfaceInvalidated = true;
+            RenderState state = renderState.get();
+            if (state.isDrawBackground() != drawBackground) {
+                renderState.set(state.withDrawBackground(drawBackground));
+                surfaceInvalidated.set(true);
+            }
+        }
+    }
+
+    // Maximum time between frame callbacks, even if nothing changes on screen. Zero means no limit.
+    public void setKeepAliveInterval(int ms) {
+        synchronized (sync) {
+            if (keepAliveInterval != ms) {
+                keepAliveInterval = ms;
+                if (draw) callNextFrame(false);
             }
         }
     }
 
+    // Only used to split up frame statistics
+    public void setDisplayState(boolean on, boolean doze) {
+        displayState = doze ? FrameStats.DISPLAY_DOZE : on ? FrameStats.DISPLAY_ON : FrameStats.DISPLAY_OFF;
+    }
+
     public Object getSynchronizer() {
         return sync;
     }
 
     public boolean isTSPMode() {
-        return isTSPMode(drawMode);
+        return isTSPMode(getMode());
     }
 
     public boolean isTSPMode(Mode mode) {
@@ -664,7 +795,7 @@ public class SpritePlayer extends RelativeLayout {
     }
 
     public boolean isMultiColorMode() {
-        return isMultiColorMode(drawMode);
+        return isMultiColorMode(getMode());
     }
 
     public boolean isMultiColorMode(Mode mode) {
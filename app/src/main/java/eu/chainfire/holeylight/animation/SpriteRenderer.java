@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2019 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffColorFilter;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.Shader;
+import android.graphics.SweepGradient;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+
+// Draws a single frame of a RenderState to a canvas, regardless of where that canvas comes from.
+// Not thread-safe, each render thread needs its own instance.
+class SpriteRenderer {
+    private static final int TSP_FIRST_DRAW_DELAY = 2000;
+
+    // The render loop shouldn't allocate, we don't want GC running while animating in doze
+    private static final PorterDuffXfermode XFERMODE_CLEAR = new PorterDuffXfermode(PorterDuff.Mode.CLEAR);
+    private static final PorterDuffXfermode XFERMODE_MULTIPLY = new PorterDuffXfermode(PorterDuff.Mode.MULTIPLY);
+    private static final PorterDuffXfermode XFERMODE_SRC_ATOP = new PorterDuffXfermode(PorterDuff.Mode.SRC_ATOP);
+    private static final int COLOR_FILTER_CACHE_SIZE = 16;
+
+    private final Paint paint = new Paint();
+    private final SparseArray<PorterDuffColorFilter> colorFilters = new SparseArray<>();
+    private final Matrix colorWheelMatrix = new Matrix();
+    private final SweepGradient[] colorWheels = new SweepGradient[360];
+    private int[] colorWheelColors = null;
+    private int[] colorWheelStops = null;
+    private float[] colorWheelPositions = null;
+    private float colorWheelCx;
+    private float colorWheelCy;
+    private final Rect destSprite = new Rect();
+    private final float dpToPx;
+
+    SpriteRenderer(float dpToPx) {
+        this.dpToPx = dpToPx;
+
+        paint.setAntiAlias(false);
+        paint.setDither(false);
+        paint.setFilterBitmap(false);
+    }
+
+    private PorterDuffColorFilter getColorFilter(int color) {
+        PorterDuffColorFilter colorFilter = colorFilters.get(color);
+        if (colorFilter == null) {
+            if (colorFilters.size() >= COLOR_FILTER_CACHE_SIZE) colorFilters.clear();
+            colorFilter = new PorterDuffColorFilter(color, PorterDuff.Mode.SRC_ATOP);
+            colorFilters.put(color, colorFilter);
+        }
+        return colorFilter;
+    }
+
+    // Hard-edged color wheel with an equal slice per color, the first starting at 12 o'clock plus
+    // startAngle, like the arcs we used to draw. Changing a shader's local matrix makes it
+    // recreate its native instance, which allocates, so we keep a shader per degree of rotation
+    // instead. These are only rebuilt when the colors' contents or the center change. SweepGradient needs at
+    // least two colors, single colors are drawn with a plain paint color.
+    private Shader getColorWheel(int[] colors, float cx, float cy, float startAngle) {
+        if (!Arrays.equals(colorWheelColors, colors) || (colorWheelCx != cx) || (colorWheelCy != cy)) {
+            colorWheelStops = new int[colors.length * 2];
+            colorWheelPositions = new float[colors.length * 2];
+            for (int i = 0; i < colors.length; i++) {
+                colorWheelStops[i * 2] = colors[i];
+                colorWheelStops[i * 2 + 1] = colors[i];
+                colorWheelPositions[i * 2] = (float)i / colors.length;
+                colorWheelPositions[i * 2 + 1] = (float)(i + 1) / colors.length;
+            }
+            Arrays.fill(colorWheels, null);
+            colorWheelColors = colors;
+            colorWheelCx = cx;
+            colorWheelCy = cy;
+        }
+        int angle = (((int)Math.floor(startAngle) % 360) + 360) % 360;
+        SweepGradient colorWheel = colorWheels[angle];
+        if (colorWheel == null) {
+            colorWheel = new SweepGradient(cx, cy, colorWheelStops, colorWheelPositions);
+            colorWheelMatrix.setRotate(angle + 270, cx, cy);
+            colorWheel.setLocalMatrix(colorWheelMatrix);
+            colorWheels[angle] = colorWheel;
+        }
+        return colorWheel;
+    }
+
+    static void getSpriteRect(RenderState state, SpriteSheet spriteSheet, SpriteSheet.Sprite sprite, Rect out) {
+        if (sprite.isEmpty()) {
+            out.setEmpty();
+            return;
+        }
+
+        // sprites are trimmed to their non-transparent area
+        Rect dest = state.getDest();
+        Rect bounds = sprite.getBounds();
+        out.set(
+                dest.left + (bounds.left * dest.width() / spriteSheet.getWidth()),
+                dest.top + (bounds.top * dest.height() / spriteSheet.getHeight()),
+                dest.left + (bounds.right * dest.width() / spriteSheet.getWidth()),
+                dest.top + (bounds.bottom * dest.height() / spriteSheet.getHeight())
+        );
+    }
+
+    @SuppressWarnings("all")
+    void renderFrame(Canvas canvas, RenderState state, SpriteSheet spriteSheet, int frame, float startAngle, float radiusDecrease) {
+        boolean drawBackground = state.isDrawBackground();
+        int[] colors = state.getColors();
+        if (drawBackground) {
+            canvas.drawColor(Color.BLACK, PorterDuff.Mode.SRC);
+        } else if (!canvas.isHardwareAccelerated()) {
+            // on hardware accelerated canvas the content is already cleared
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        }
+        if ((colors == null) || (colors.length == 0)) return;
+        if ((state.getMode() == SpritePlayer.Mode.TSP) || (state.getMode() == SpritePlayer.Mode.TSP_HIDE)) {
+            // TSP_HIDE is a no_op, background drawn already, we only handle it at all because
+            // rendering here causes the rest of the screen to be updated as well
+            //
+            // We delay a short time to prevent the circle jumping around on first show, due to
+            // AOD start TSP rect updates
+            if ((state.getMode() == SpritePlayer.Mode.TSP) && (SystemClock.elapsedRealtime() - state.getModeStart() > TSP_FIRST_DRAW_DELAY)) {
+                paint.setColorFilter(null);
+                paint.setXfermode(null);
+
+                float left = radiusDecrease;
+                float top = radiusDecrease;
+                float width = state.getWidth() - (radiusDecrease * 2f);
+                float height = state.getHeight() - (radiusDecrease * 2f);
+                float right = left + width;
+                float bottom = top + height;
+                // not derived from left/top, rounding would move the center as the radius shrinks
+                float cx = state.getWidth() / 2f;
+                float cy = state.getHeight() / 2f;
+                float radius = (width / 2f) - (8f * dpToPx * state.getRenderScale());
+
+                if (colors.length == 1) {
+                    paint.setColor(colors[0]);
+                } else {
+                    // the surface is square, so the color wheel covers the same area as the arcs
+                    // did; the shader only takes the paint's alpha, which drawCircle may have zeroed
+                    paint.setColor(Color.WHITE);
+                    paint.setShader(getColorWheel(colors, cx, cy, startAngle));
+                }
+                canvas.drawOval(left, top, right, bottom, paint);
+                paint.setShader(null);
+
+                if (drawBackground) {
+                    paint.setColor(Color.BLACK);
+                } else {
+                    paint.setColor(Color.TRANSPARENT);
+                    paint.setXfermode(XFERMODE_CLEAR);
+                }
+                canvas.drawCircle(cx, cy, radius, paint);
+            }
+        } else if (spriteSheet != null) {
+            SpriteSheet.Sprite sprite = spriteSheet.getFrame(frame);
+            if (sprite.isEmpty()) return;
+
+            Rect dest = state.getDest();
+            Rect destDouble = state.getDestDouble();
+            getSpriteRect(state, spriteSheet, sprite, destSprite);
+
+            paint.setXfermode(null);
+            paint.setColor(Color.WHITE);
+            // sheets are built at full resolution, filter if the surface is rendered smaller
+            paint.setFilterBitmap((dest.width() != spriteSheet.getWidth()) || (dest.height() != spriteSheet.getHeight()));
+            Bitmap bitmap = sprite.getBitmap();
+            if (colors.length == 1) {
+                // fast single-color mode
+                if (bitmap.getConfig() == Bitmap.Config.ALPHA_8) {
+                    // alpha masks are drawn in the paint's color
+                    paint.setColorFilter(null);
+                    paint.setColor(colors[0]);
+                } else {
+                    paint.setColorFilter(getColorFilter(colors[0]));
+                }
+                if (!bitmap.isRecycled()) {
+                    canvas.drawBitmap(bitmap, sprite.getArea(), destSprite, paint);
+                }
+            } else if (bitmap.getConfig() == Bitmap.Config.ALPHA_8) {
+                // multi-colored mode, alpha masks are drawn with the paint's shader, so this is
+                // a single draw regardless of the number of colors
+                paint.setColorFilter(null);
+                paint.setShader(getColorWheel(colors, dest.exactCenterX(), dest.exactCenterY(), startAngle));
+                if (!bitmap.isRecycled()) {
+                    canvas.drawBitmap(bitmap, sprite.getArea(), destSprite, paint);
+                }
+                paint.setShader(null);
+            } else {
+                // slower multi-colored mode
+                paint.setColorFilter(null);
+                if (!bitmap.isRecycled()) {
+                    canvas.drawBitmap(bitmap, sprite.getArea(), destSprite, paint);
+                }
+
+                paint.setXfermode(drawBackground ? XFERMODE_MULTIPLY : XFERMODE_SRC_ATOP);
+
+                float anglePerColor = 360f / colors.length;
+                for (int i = 0; i < colors.length; i++) {
+                    // we use double size here because the arc may cut off the larger S10+ animation otherwise
+                    paint.setColor(colors[i]);
+                    canvas.drawArc(destDouble.left, destDouble.top, destDouble.right, destDouble.bottom, startAngle + 270 + (anglePerColor * i), anglePerColor, true, paint);
+                }
+            }
+        }
+    }
+
+    static void clear(Canvas canvas) {
+        if (!canvas.isHardwareAccelerated()) {
+            // on hardware accelerated canvas the content is already cleared
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        }
+    }
+}
@@ -23,80 +23,97 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.os.CancellationSignal;
 
 import com.airbnb.lottie.LottieComposition;
 import com.airbnb.lottie.LottieDrawable;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
+import eu.chainfire.holeylight.misc.Slog;
+
 @SuppressWarnings({ "WeakerAccess", "unused", "UnusedReturnValue" })
 public class SpriteSheet {
     public static SpriteSheet fromLottieComposition(LottieComposition lottieComposition, int width, int height, SpritePlayer.Mode mode) {
+        return fromLottieComposition(lottieComposition, width, height, mode, (CancellationSignal)null);
+    }
+
+    // Returns null if cancelled, which is checked between frames
+    public static SpriteSheet fromLottieComposition(LottieComposition lottieComposition, int width, int height, SpritePlayer.Mode mode, CancellationSignal cancellationSignal) {
+        // All our animations are white masks that are tinted during playback, so we don't need
+        // to store more than the alpha channel
+        return fromLottieComposition(lottieComposition, width, height, mode, Bitmap.Config.ALPHA_8, true, cancellationSignal);
+    }
+
+    public static SpriteSheet fromLottieComposition(LottieComposition lottieComposition, int width, int height, SpritePlayer.Mode mode, Bitmap.Config config) {
+        return fromLottieComposition(lottieComposition, width, height, mode, config, true, null);
+    }
+
+    // direct == false renders at intrinsic size and downscales into the cell, which is how it used
+    // to be done; kept so SpriteSheetBenchmark can compare both
+    static SpriteSheet fromLottieComposition(LottieComposition lottieComposition, int width, int height, SpritePlayer.Mode mode, Bitmap.Config config, boolean direct, CancellationSignal cancellationSignal) {
         SpriteSheet ss;
 
         if (mode == SpritePlayer.Mode.SWIRL) {
             int frames = (int)lottieComposition.getDurationFrames();
             int frameRate = (int)lottieComposition.getFrameRate();
 
-            ss = new SpriteSheet(width, height, frames, frameRate);
-
-            LottieDrawable lottieDrawable = new LottieDrawable();
-            lottieDrawable.setComposition(lottieComposition);
-
-            Bitmap frame = Bitmap.createBitmap(lottieDrawable.getIntrinsicWidth(), lottieDrawable.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
+            ss = new SpriteSheet(width, height, frames, frameRate, config);
 
-            for (int i = 0; i < frames; i++) {
-                frame.eraseColor(Color.TRANSPARENT);
-
-                Canvas frame_canvas = new Canvas(frame);
-                lottieDrawable.setFrame(i);
-                lottieDrawable.draw(frame_canvas);
-
-                ss.addFrame(frame);
+            Frame[] rendered = ss.rasterize(lottieComposition, frames, direct, cancellationSignal);
+            if (rendered == null) {
+                ss.recycle();
+                return null;
             }
-        } else if (mode == SpritePlayer.Mode.BLINK){
-            int frames = (int)lottieComposition.getDurationFrames();
-
-            ss = new SpriteSheet(width, height, 2, 1);
-
-            LottieDrawable lottieDrawable = new LottieDrawable();
-            lottieDrawable.setComposition(lottieComposition);
-
-            Bitmap frame = Bitmap.createBitmap(lottieDrawable.getIntrinsicWidth(), lottieDrawable.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
-
-            frame.eraseColor(Color.TRANSPARENT);
-            for (int i = 0; i < frames; i++) {
-                Canvas frame_canvas = new Canvas(frame);
-                lottieDrawable.setFrame(i);
-                lottieDrawable.draw(frame_canvas);
+            for (Frame frame : rendered) {
+                ss.addFrame(frame);
             }
-            ss.addFrame(frame);
-
-            frame.eraseColor(Color.TRANSPARENT);
-            ss.addFrame(frame);
-        } else if (mode == SpritePlayer.Mode.SINGLE) {
-            int frames = (int)lottieComposition.getDurationFrames();
+        } else if ((mode == SpritePlayer.Mode.BLINK) || (mode == SpritePlayer.Mode.SINGLE)) {
+            SpriteSheet swirl = fromLottieComposition(lottieComposition, width, height, SpritePlayer.Mode.SWIRL, config, direct, cancellationSignal);
+            if (swirl == null) return null;
+            ss = fromSwirl(swirl, mode);
+            swirl.recycle();
+            return ss;
+        } else {
+            return null;
+        }
 
-            ss = new SpriteSheet(width, height, 1, 1);
+        return finish(ss, mode);
+    }
 
-            LottieDrawable lottieDrawable = new LottieDrawable();
-            lottieDrawable.setComposition(lottieComposition);
+    // BLINK and SINGLE show all SWIRL frames drawn on top of each other. Compositing the already
+    // rasterized SWIRL frames is far cheaper than another pass over the Lottie timeline.
+    public static SpriteSheet fromSwirl(SpriteSheet swirl, SpritePlayer.Mode mode) {
+        if ((mode != SpritePlayer.Mode.BLINK) && (mode != SpritePlayer.Mode.SINGLE)) return null;
+
+        int width = swirl.getWidth();
+        int height = swirl.getHeight();
+
+        SpriteSheet ss = new SpriteSheet(width, height, mode == SpritePlayer.Mode.BLINK ? 2 : 1, 1, swirl.getConfig());
+        ss.scratch = new Scratch(width, height);
+        swirl.accumulate(ss.scratch);
+        ss.addFrame(ss.trim(ss.scratch));
+        if (mode == SpritePlayer.Mode.BLINK) {
+            ss.scratch.cell.eraseColor(Color.TRANSPARENT);
+            ss.addFrame(ss.trim(ss.scratch));
+        }
 
-            Bitmap frame = Bitmap.createBitmap(lottieDrawable.getIntrinsicWidth(), lottieDrawable.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
+        return finish(ss, mode);
+    }
 
-            frame.eraseColor(Color.TRANSPARENT);
-            for (int i = 0; i < frames; i++) {
-                Canvas frame_canvas = new Canvas(frame);
-                lottieDrawable.setFrame(i);
-                lottieDrawable.draw(frame_canvas);
-            }
-            ss.addFrame(frame);
-        } else {
-            return null;
-        }
+    private static SpriteSheet finish(SpriteSheet ss, SpritePlayer.Mode mode) {
+        ss.pack();
 
         if (ss.isValid()) {
+            Slog.d("SpriteSheet", "%s %dx%d: %d frames, %d unique, %d sheets, %d bytes (%d bytes as ARGB_8888)", mode.toString(), ss.getWidth(), ss.getHeight(), ss.getFrames(), ss.getUniqueFrames(), ss.getSheetCount(), ss.getByteCount(), ss.getByteCount(Bitmap.Config.ARGB_8888));
             return ss;
         } else {
             ss.recycle();
@@ -104,103 +121,383 @@ public class SpriteSheet {
         }
     }
 
+    // Increase whenever the serialized format or the rendering output changes, old cache files
+    // are discarded based on this value
+    public static final int FORMAT_VERSION = 5;
+
+    private static final int FORMAT_MAGIC = 0x484C5353; // HLSS
+
     private static final int SHEET_DIM = 1024;
 
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8: return 1;
+            case RGB_565: return 2;
+            case ARGB_4444: return 2;
+            case RGBA_F16: return 8;
+            default: return 4;
+        }
+    }
+
     public class Sheet {
         private final Bitmap bitmap;
-        private final int cols;
-        private final int rows;
-        private final int capacity;
-        private int used = 0;
-
-        private Sheet() {
-            this(null);
-        }
+        private final ByteBuffer pixels;
+        private final int sheetWidth;
+        private final int sheetHeight;
 
         private Sheet(Bitmap bitmap) {
-            if (bitmap == null) bitmap = Bitmap.createBitmap(SHEET_DIM, SHEET_DIM, Bitmap.Config.ARGB_8888);
             this.bitmap = bitmap;
-            cols = bitmap.getWidth() / width;
-            rows = bitmap.getHeight() / height;
-            capacity = cols * rows;
+            pixels = null;
+            sheetWidth = bitmap.getWidth();
+            sheetHeight = bitmap.getHeight();
+        }
+
+        private Sheet(int sheetWidth, int sheetHeight, ByteBuffer pixels) {
+            // read-only, backed by mapped memory
+            this.bitmap = null;
+            this.pixels = pixels;
+            this.sheetWidth = sheetWidth;
+            this.sheetHeight = sheetHeight;
         }
 
+        // Mapped sheets have no bitmap, their sprites are uploaded one cell at a time
         public Bitmap getBitmap() {
             return bitmap;
         }
 
-        public Rect nextSprite() {
-            if (used >= capacity) {
-                return null;
+        public int getWidth() {
+            return sheetWidth;
+        }
+
+        public int getHeight() {
+            return sheetHeight;
+        }
+
+        public int getByteCount() {
+            return getByteCount(config);
+        }
+
+        public int getByteCount(Bitmap.Config config) {
+            return sheetWidth * sheetHeight * getBytesPerPixel(config);
+        }
+
+        // Heap sheets are returned as-is, mapped sheets are copied into a new bitmap owned by the
+        // caller; upload() may be in use by the render thread
+        private Bitmap getPrivateBitmap() {
+            if (bitmap != null) return bitmap;
+            Bitmap ret = Bitmap.createBitmap(sheetWidth, sheetHeight, config);
+            ByteBuffer buffer = pixels.duplicate();
+            buffer.rewind();
+            ret.copyPixelsFromBuffer(buffer);
+            return ret;
+        }
+
+        private void writePixels(DataOutputStream out) throws IOException {
+            if (bitmap != null) {
+                ByteBuffer buffer = ByteBuffer.allocate(bitmap.getByteCount());
+                bitmap.copyPixelsToBuffer(buffer);
+                out.write(buffer.array());
+            } else {
+                ByteBuffer buffer = pixels.duplicate();
+                buffer.rewind();
+                byte[] chunk = new byte[65536];
+                while (buffer.hasRemaining()) {
+                    int len = Math.min(chunk.length, buffer.remaining());
+                    buffer.get(chunk, 0, len);
+                    out.write(chunk, 0, len);
+                }
             }
-            Rect rect = new Rect();
-            rect.left = (used % cols) * width;
-            rect.top = (used / cols) * height;
-            rect.right = rect.left + width;
-            rect.bottom = rect.top + height;
-            used++;
-            return rect;
         }
     }
 
     public class Sprite {
-        private final Sheet sheet;
+        private Sheet sheet;
         private final Rect area;
+        private final Rect bounds;
+        private final Rect uploadArea;
+        private Bitmap pending;
+        private int hash;
 
-        private Sprite(Sheet sheet, Rect area) {
+        private Sprite(Sheet sheet, Rect area, Rect bounds) {
             this.sheet = sheet;
             this.area = area;
+            this.bounds = bounds;
+            // only used for mapped sheets, whose areas are final when loaded
+            this.uploadArea = new Rect(0, 0, area.width(), area.height());
         }
 
+        // Area inside getBitmap()
         public Rect getArea() {
-            return area;
+            return (sheet != null) && (sheet.bitmap == null) ? uploadArea : area;
+        }
+
+        // Position inside the full width x height frame, the rest of the frame is transparent
+        public Rect getBounds() {
+            return bounds;
+        }
+
+        public boolean isEmpty() {
+            return (sheet == null);
         }
 
         public Bitmap getBitmap() {
-            return sheet.getBitmap();
+            if (sheet == null) return null;
+            if (sheet.bitmap != null) return sheet.bitmap;
+            return upload(this);
         }
     }
 
     private List<Sheet> sheets = new ArrayList<>();
     private List<Sprite> sprites = new ArrayList<>();
 
+    // For mapped sheets, only the cell of the sprite currently being drawn is copied to the heap
+    private Bitmap upload = null;
+    private ByteBuffer uploadBuffer = null;
+    private Sprite uploaded = null;
+
+    // Scratch space used while building
+    private Scratch scratch = null;
+
+    private final Bitmap.Config config;
     private final int width;
     private final int height;
     private final int frames;
     private final int frameRate;
 
-    private SpriteSheet(int width, int height, int frames, int frameRate) {
+    private SpriteSheet(int width, int height, int frames, int frameRate, Bitmap.Config config) {
+        this.config = config;
         this.width = width;
         this.height = height;
         this.frames = frames;
         this.frameRate = frameRate;
     }
 
-    private Sprite addFrame(Bitmap source) {
-        Sheet sheet = null;
-        Rect area = null;
-        if (sheets.size() > 0) {
-            sheet = sheets.get(sheets.size() - 1);
-            area = sheet.nextSprite();
+    private static class Scratch {
+        private final Bitmap cell;
+        private final int[] cellPixels;
+        private final Canvas canvas;
+        private final Paint paint = new Paint();
+
+        private Scratch(int width, int height) {
+            cell = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            cellPixels = new int[width * height];
+            canvas = new Canvas(cell);
+            paint.setFilterBitmap(true);
+            paint.setDither(true);
+            paint.setAntiAlias(true);
         }
-        if (area == null) {
-            sheet = new Sheet();
-            sheets.add(sheet);
-            area = sheet.nextSprite();
+
+        private void recycle() {
+            if (!cell.isRecycled()) cell.recycle();
         }
+    }
 
-        Canvas canvas = new Canvas(sheet.getBitmap());
+    private static class Frame {
+        private final Rect bounds;
+        private final int hash;
+        private final Bitmap pending;
+
+        private Frame(Rect bounds, int hash, Bitmap pending) {
+            this.bounds = bounds;
+            this.hash = hash;
+            this.pending = pending;
+        }
+    }
+
+    private Frame trim(Bitmap source, Scratch scratch) {
+        scratch.cell.eraseColor(Color.TRANSPARENT);
+        scratch.canvas.drawBitmap(source, new Rect(0, 0, source.getWidth(), source.getHeight()), new Rect(0, 0, width, height), scratch.paint);
+        return trim(scratch);
+    }
+
+    private Frame trim(Scratch scratch) {
+        Bitmap cell = scratch.cell;
+        int[] cellPixels = scratch.cellPixels;
+
+        // Trim to the non-transparent area, that is all we store
+        Rect bounds = new Rect();
+        cell.getPixels(cellPixels, 0, width, 0, 0, width, height);
+        int left = width;
+        int top = height;
+        int right = -1;
+        int bottom = -1;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                if ((cellPixels[offset + x] >>> 24) != 0) {
+                    if (x < left) left = x;
+                    if (x > right) right = x;
+                    if (y < top) top = y;
+                    bottom = y;
+                }
+            }
+        }
+        if (right >= left) {
+            bounds.set(left, top, right + 1, bottom + 1);
+        }
+
+        int hash = bounds.hashCode();
+        for (int y = bounds.top; y < bounds.bottom; y++) {
+            int offset = y * width;
+            for (int x = bounds.left; x < bounds.right; x++) {
+                hash = 31 * hash + cellPixels[offset + x];
+            }
+        }
+
+        Bitmap pending = null;
+        if (!bounds.isEmpty()) {
+            pending = Bitmap.createBitmap(bounds.width(), bounds.height(), config);
+            new Canvas(pending).drawBitmap(cell, bounds, new Rect(0, 0, bounds.width(), bounds.height()), null);
+        }
+
+        return new Frame(bounds, hash, pending);
+    }
+
+    // Single threaded on purpose: Lottie 3.0.0 keeps scratch state in static fields (Utils' path
+    // measure and temporary paths among others) that every LottieDrawable shares, so drawing
+    // frames concurrently can corrupt them, and corrupted frames would end up in the cache.
+    private Frame[] rasterize(LottieComposition lottieComposition, int frames, boolean direct, CancellationSignal cancellationSignal) {
+        Frame[] ret = new Frame[frames];
+        rasterize(lottieComposition, ret, direct, cancellationSignal);
+        if (isCanceled(cancellationSignal)) {
+            recycle(ret);
+            return null;
+        }
+        return ret;
+    }
+
+    private void rasterize(LottieComposition lottieComposition, Frame[] out, boolean direct, CancellationSignal cancellationSignal) {
+        LottieDrawable lottieDrawable = new LottieDrawable();
+        lottieDrawable.setComposition(lottieComposition);
+
+        Scratch scratch = new Scratch(width, height);
+        if (direct) {
+            // LottieDrawable clamps its scale to what fits the canvas bitmap, and draws the
+            // composition with that scale on top of the canvas matrix. Let it draw at the
+            // smaller of the two axis scales, and stretch the other axis with the canvas.
+            Rect bounds = lottieComposition.getBounds();
+            float scaleX = width / (float)bounds.width();
+            float scaleY = height / (float)bounds.height();
+            float scale = Math.min(scaleX, scaleY);
+            lottieDrawable.setScale(scale);
+            try {
+                for (int i = 0; i < out.length; i++) {
+                    if (isCanceled(cancellationSignal)) return;
+                    scratch.cell.eraseColor(Color.TRANSPARENT);
+                    lottieDrawable.setFrame(i);
+                    int save = scratch.canvas.save();
+                    scratch.canvas.scale(scaleX / scale, scaleY / scale);
+                    lottieDrawable.draw(scratch.canvas);
+                    scratch.canvas.restoreToCount(save);
+                    out[i] = trim(scratch);
+                }
+            } finally {
+                scratch.recycle();
+            }
+            return;
+        }
+
+        Bitmap frame = Bitmap.createBitmap(lottieDrawable.getIntrinsicWidth(), lottieDrawable.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
+        Canvas frame_canvas = new Canvas(frame);
+        try {
+            for (int i = 0; i < out.length; i++) {
+                if (isCanceled(cancellationSignal)) return;
+                frame.eraseColor(Color.TRANSPARENT);
+                lottieDrawable.setFrame(i);
+                lottieDrawable.draw(frame_canvas);
+                out[i] = trim(frame, scratch);
+            }
+        } finally {
+            scratch.recycle();
+            frame.recycle();
+        }
+    }
+
+    private static boolean isCanceled(CancellationSignal cancellationSignal) {
+        return (cancellationSignal != null) && cancellationSignal.isCanceled();
+    }
+
+    private static void recycle(Frame[] frames) {
+        for (Frame frame : frames) {
+            if ((frame != null) && (frame.pending != null)) frame.pending.recycle();
+        }
+    }
+
+    private void accumulate(Scratch target) {
+        // ALPHA_8 sheets are drawn in the paint color
         Paint paint = new Paint();
-        paint.setFilterBitmap(true);
-        paint.setDither(true);
-        paint.setAntiAlias(true);
-        canvas.drawBitmap(source, new Rect(0, 0, source.getWidth(), source.getHeight()), area, paint);
+        paint.setColor(Color.WHITE);
+
+        target.cell.eraseColor(Color.TRANSPARENT);
+        Bitmap[] bitmaps = new Bitmap[sheets.size()];
+        try {
+            for (Sprite sprite : sprites) {
+                if (sprite.isEmpty()) continue;
+                int index = sheets.indexOf(sprite.sheet);
+                if (bitmaps[index] == null) bitmaps[index] = sprite.sheet.getPrivateBitmap();
+                target.canvas.drawBitmap(bitmaps[index], sprite.area, sprite.bounds, paint);
+            }
+        } finally {
+            for (int i = 0; i < bitmaps.length; i++) {
+                if ((bitmaps[i] != null) && (bitmaps[i] != sheets.get(i).bitmap)) bitmaps[i].recycle();
+            }
+        }
+    }
 
-        Sprite sprite = new Sprite(sheet, area);
+    private Sprite addFrame(Frame frame) {
+        // Animations often hold the same image for a number of frames, share the cell
+        for (Sprite sprite : sprites) {
+            if ((sprite.hash == frame.hash) && sprite.bounds.equals(frame.bounds) && ((frame.pending == null) || frame.pending.sameAs(sprite.pending))) {
+                if (frame.pending != null) frame.pending.recycle();
+                sprites.add(sprite);
+                return sprite;
+            }
+        }
+
+        Sprite sprite = new Sprite(null, new Rect(), frame.bounds);
+        sprite.pending = frame.pending;
+        sprite.hash = frame.hash;
         sprites.add(sprite);
         return sprite;
     }
 
+    private void pack() {
+        List<Sprite> packable = new ArrayList<>();
+        for (Sprite sprite : sprites) {
+            if ((sprite.pending != null) && !packable.contains(sprite)) packable.add(sprite);
+        }
+
+        int[] widths = new int[packable.size()];
+        int[] heights = new int[packable.size()];
+        for (int i = 0; i < packable.size(); i++) {
+            widths[i] = packable.get(i).bounds.width();
+            heights[i] = packable.get(i).bounds.height();
+        }
+
+        SpritePacker.Result result = SpritePacker.pack(widths, heights, Math.max(SHEET_DIM, Math.max(width, height)));
+
+        Canvas[] canvases = new Canvas[result.sheetSizes.size()];
+        for (int i = 0; i < canvases.length; i++) {
+            Sheet sheet = new Sheet(Bitmap.createBitmap(result.sheetSizes.get(i).x, result.sheetSizes.get(i).y, config));
+            sheets.add(sheet);
+            canvases[i] = new Canvas(sheet.getBitmap());
+        }
+
+        for (int i = 0; i < packable.size(); i++) {
+            Sprite sprite = packable.get(i);
+            sprite.sheet = sheets.get(result.sheet[i]);
+            sprite.area.set(result.x[i], result.y[i], result.x[i] + widths[i], result.y[i] + heights[i]);
+            canvases[result.sheet[i]].drawBitmap(sprite.pending, sprite.area.left, sprite.area.top, null);
+            sprite.pending.recycle();
+            sprite.pending = null;
+        }
+
+        if (scratch != null) {
+            scratch.recycle();
+            scratch = null;
+        }
+    }
+
     public int getWidth() {
         return width;
     }
@@ -224,17 +521,197 @@ public class SpriteSheet {
         return null;
     }
 
+    // Draws the full width x height frame at the canvas origin
+    void drawFrame(int index, Canvas canvas, Paint paint) {
+        Sprite sprite = getFrame(index);
+        if ((sprite == null) || sprite.isEmpty()) return;
+        canvas.drawBitmap(sprite.getBitmap(), sprite.getArea(), sprite.bounds, paint);
+    }
+
+    public int getUniqueFrames() {
+        List<Sprite> unique = new ArrayList<>();
+        for (Sprite sprite : sprites) {
+            if (!unique.contains(sprite)) unique.add(sprite);
+        }
+        return unique.size();
+    }
+
     public boolean isValid() {
-        return (sprites.size() == frames);
+        if (sprites.size() != frames) return false;
+        for (Sprite sprite : sprites) {
+            if (sprite.pending != null) return false;
+        }
+        return true;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(frames);
+        out.writeInt(frameRate);
+        out.writeInt(config.ordinal());
+
+        out.writeInt(sheets.size());
+        for (Sheet sheet : sheets) {
+            out.writeInt(sheet.getWidth());
+            out.writeInt(sheet.getHeight());
+        }
+
+        out.writeInt(sprites.size());
+        for (Sprite sprite : sprites) {
+            out.writeInt(sprite.sheet != null ? sheets.indexOf(sprite.sheet) : -1);
+            for (Rect rect : new Rect[] { sprite.area, sprite.bounds }) {
+                out.writeInt(rect.left);
+                out.writeInt(rect.top);
+                out.writeInt(rect.right);
+                out.writeInt(rect.bottom);
+            }
+        }
+
+        for (Sheet sheet : sheets) {
+            sheet.writePixels(out);
+        }
+    }
+
+    static SpriteSheet map(File file) throws IOException {
+        // The mapping remains valid after the channel is closed
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt() != FORMAT_MAGIC) throw new IOException("Invalid sprite sheet magic");
+        if (buffer.getInt() != FORMAT_VERSION) throw new IOException("Invalid sprite sheet version");
+
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int frames = buffer.getInt();
+        int frameRate = buffer.getInt();
+        int config = buffer.getInt();
+        if ((config < 0) || (config >= Bitmap.Config.values().length)) throw new IOException("Invalid sprite sheet config");
+
+        SpriteSheet ss = new SpriteSheet(width, height, frames, frameRate, Bitmap.Config.values()[config]);
+
+        int sheetCount = buffer.getInt();
+        int[] sheetDims = new int[sheetCount * 2];
+        for (int i = 0; i < sheetCount; i++) {
+            sheetDims[i * 2] = buffer.getInt();
+            sheetDims[i * 2 + 1] = buffer.getInt();
+        }
+
+        int spriteCount = buffer.getInt();
+        int[] spriteSheets = new int[spriteCount];
+        Rect[] spriteAreas = new Rect[spriteCount];
+        Rect[] spriteBounds = new Rect[spriteCount];
+        for (int i = 0; i < spriteCount; i++) {
+            spriteSheets[i] = buffer.getInt();
+            spriteAreas[i] = new Rect(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+            spriteBounds[i] = new Rect(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+            if ((spriteSheets[i] < -1) || (spriteSheets[i] >= sheetCount)) throw new IOException("Invalid sprite sheet index");
+        }
+
+        int offset = buffer.position();
+        for (int i = 0; i < sheetCount; i++) {
+            int size = sheetDims[i * 2] * sheetDims[i * 2 + 1] * getBytesPerPixel(ss.config);
+            if (offset + size > buffer.limit()) throw new IOException("Truncated sprite sheet");
+            buffer.position(offset);
+            ByteBuffer pixels = buffer.slice();
+            pixels.limit(size);
+            ss.sheets.add(ss.new Sheet(sheetDims[i * 2], sheetDims[i * 2 + 1], pixels));
+            offset += size;
+        }
+
+        for (int i = 0; i < spriteCount; i++) {
+            // frames sharing a cell share the Sprite instance, so players can compare by identity
+            Sprite sprite = null;
+            for (int j = 0; j < i; j++) {
+                if ((spriteSheets[j] == spriteSheets[i]) && spriteAreas[j].equals(spriteAreas[i]) && spriteBounds[j].equals(spriteBounds[i])) {
+                    sprite = ss.sprites.get(j);
+                    break;
+                }
+            }
+            if (sprite == null) {
+                sprite = ss.new Sprite(spriteSheets[i] >= 0 ? ss.sheets.get(spriteSheets[i]) : null, spriteAreas[i], spriteBounds[i]);
+            }
+            ss.sprites.add(sprite);
+        }
+
+        if (!ss.isValid()) throw new IOException("Incomplete sprite sheet");
+        return ss;
+    }
+
+    private Bitmap upload(Sprite sprite) {
+        if (uploaded != sprite) {
+            if (upload == null) {
+                // no cell is larger than a frame, so we can reconfigure instead of reallocate
+                upload = Bitmap.createBitmap(width, height, config);
+                uploadBuffer = ByteBuffer.allocate(width * height * getBytesPerPixel(config));
+            }
+            if (upload.isRecycled()) return upload;
+
+            Rect area = sprite.area;
+            Sheet sheet = sprite.sheet;
+            int bpp = getBytesPerPixel(config);
+            int rowBytes = area.width() * bpp;
+            uploadBuffer.clear();
+            for (int y = area.top; y < area.bottom; y++) {
+                int offset = (y * sheet.sheetWidth + area.left) * bpp;
+                sheet.pixels.limit(offset + rowBytes);
+                sheet.pixels.position(offset);
+                uploadBuffer.put(sheet.pixels);
+            }
+            sheet.pixels.clear();
+            uploadBuffer.flip();
+
+            if ((upload.getWidth() != area.width()) || (upload.getHeight() != area.height())) {
+                upload.reconfigure(area.width(), area.height(), config);
+            }
+            upload.copyPixelsFromBuffer(uploadBuffer);
+            uploaded = sprite;
+        }
+        return upload;
+    }
+
+    public int getSheetCount() {
+        return sheets.size();
+    }
+
+    public Bitmap.Config getConfig() {
+        return config;
+    }
+
+    public long getByteCount() {
+        return getByteCount(config);
+    }
+
+    public long getByteCount(Bitmap.Config config) {
+        long ret = 0;
+        for (Sheet sheet : sheets) {
+            ret += sheet.getByteCount(config);
+        }
+        return ret;
     }
 
     public void recycle() {
         for (Sheet sheet : sheets) {
-            Bitmap bitmap = sheet.getBitmap();
+            Bitmap bitmap = sheet.bitmap;
             if ((bitmap != null) && !bitmap.isRecycled()) {
                 bitmap.recycle();
             }
         }
+        for (Sprite sprite : sprites) {
+            if ((sprite.pending != null) && !sprite.pending.isRecycled()) {
+                sprite.pending.recycle();
+            }
+        }
+        if ((upload != null) && !upload.isRecycled()) {
+            upload.recycle();
+        }
+        if (scratch != null) {
+            scratch.recycle();
+        }
     }
 
     @Override
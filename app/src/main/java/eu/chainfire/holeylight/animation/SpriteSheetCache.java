@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2019 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.content.Context;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import eu.chainfire.holeylight.misc.Slog;
+
+// Rasterizing the Lottie animations takes a significant amount of time, which we would otherwise
+// pay again on every service start and restart. Sheets are stored keyed by animation, size and
+// mode, anything from another animation or format version is thrown away. Sizes we no longer use
+// (resolution changes) are dropped least recently used first once we exceed MAX_BYTES.
+//
+// Sheets are returned memory-mapped rather than loaded onto the heap, so the kernel can page them
+// out while we're sitting in doze.
+@SuppressWarnings({ "WeakerAccess", "UnusedReturnValue" })
+public class SpriteSheetCache {
+    private static final String DIRECTORY = "spritesheets";
+    private static final String EXTENSION = ".sheet";
+    private static final String EXTENSION_TEMP = ".tmp";
+    private static final long MAX_BYTES = 32L * 1024L * 1024L;
+
+    private final File directory;
+    private final String prefix;
+    private boolean pruned = false;
+
+    public SpriteSheetCache(Context context, String json) {
+        directory = new File(context.getCacheDir(), DIRECTORY);
+        prefix = String.format(Locale.ENGLISH, "v%d_%s_", SpriteSheet.FORMAT_VERSION, hash(json));
+    }
+
+    @SuppressWarnings("all")
+    private void log(String fmt, Object... args) {
+        Slog.d("SheetCache", fmt, args);
+    }
+
+    private static String hash(String json) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(json.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format(Locale.ENGLISH, "%02x", b & 0xFF));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.format(Locale.ENGLISH, "%08x", json.hashCode());
+        }
+    }
+
+    private File getFile(int width, int height, SpritePlayer.Mode mode) {
+        return new File(directory, String.format(Locale.ENGLISH, "%s%dx%d_%s%s", prefix, width, height, mode.name().toLowerCase(Locale.ENGLISH), EXTENSION));
+    }
+
+    private void prune() {
+        if (pruned) return;
+        pruned = true;
+
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.getName().startsWith(prefix) || !file.getName().endsWith(EXTENSION)) {
+                log("Prune %s", file.getName());
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    // Newest first, keep is never deleted
+    private void trim(File keep) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null) return;
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+
+        long total = 0;
+        for (File file : files) {
+            long length = file.length();
+            total += length;
+            if ((total > MAX_BYTES) && !file.equals(keep)) {
+                log("Trim %s", file.getName());
+                if (file.delete()) total -= length;
+            }
+        }
+    }
+
+    public synchronized SpriteSheet get(int width, int height, SpritePlayer.Mode mode) {
+        File file = getFile(width, height, mode);
+        if (!file.exists()) return null;
+
+        // last modified doubles as last used for trim()
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+
+        long start = System.nanoTime();
+        try {
+            SpriteSheet spriteSheet = SpriteSheet.map(file);
+            log("Map %s [%d ms]", file.getName(), (System.nanoTime() - start) / 1000000L);
+            return spriteSheet;
+        } catch (IOException | RuntimeException e) {
+            log("Map %s failed: %s", file.getName(), e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    public synchronized boolean put(SpriteSheet spriteSheet, SpritePlayer.Mode mode) {
+        prune();
+
+        if (!directory.exists() && !directory.mkdirs()) return false;
+
+        File file = getFile(spriteSheet.getWidth(), spriteSheet.getHeight(), mode);
+        File temp = new File(file.getAbsolutePath() + EXTENSION_TEMP);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536))) {
+                spriteSheet.writeTo(out);
+            }
+            if (!temp.renameTo(file)) throw new IOException("Rename failed");
+            log("Store %s", file.getName());
+            trim(file);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log("Store %s failed: %s", file.getName(), e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return false;
+        }
+    }
+}
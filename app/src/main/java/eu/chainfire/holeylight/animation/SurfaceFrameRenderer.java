@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2019 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.view.SurfaceHolder;
+
+// Software canvas on a SurfaceView's surface
+class SurfaceFrameRenderer implements FrameRenderer {
+    private final SurfaceHolder holder;
+
+    SurfaceFrameRenderer(SurfaceHolder holder) {
+        this.holder = holder;
+    }
+
+    @Override
+    public Canvas lockCanvas(Rect dirty) {
+        if (dirty == null) return holder.lockCanvas();
+        if (dirty.isEmpty()) dirty.set(0, 0, 1, 1); // we still want to post a frame
+        return holder.lockCanvas(dirty);
+    }
+
+    @Override
+    public void unlockCanvasAndPost(Canvas canvas) {
+        try {
+            holder.unlockCanvasAndPost(canvas);
+        } catch (IllegalStateException e) {
+            // no action
+        }
+    }
+}
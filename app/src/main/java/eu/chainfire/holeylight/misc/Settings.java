@@ -182,6 +182,16 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
     private static final String SEEN_TIMEOUT_FMT = "seen_timeout_%s";
     public static final int SEEN_TIMEOUT_DEFAULT = 0;
 
+    private static final String RENDER_SCALE_FMT = "render_scale_%s";
+
+    // SCREEN_AND_POWER_STATE indexed, half resolution when the screen is off on battery
+    public static final float[] RENDER_SCALE_DEFAULTS = new float[] {
+            1.0f,
+            1.0f,
+            1.0f,
+            0.5f
+    };
+
     private static final String SETUP_WIZARD_COMPLETE = "setup_wizard_complete";
 
     private static Settings instance;
@@ -613,4 +623,12 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
             save(true);
         }
     }
+
+    public String getRenderScaleKey(int mode) {
+        return String.format(Locale.ENGLISH, RENDER_SCALE_FMT, SCREEN_AND_POWER_STATE[mode]);
+    }
+
+    public float getRenderScale(int mode) {
+        return prefs.getFloat(getRenderScaleKey(mode), RENDER_SCALE_DEFAULTS[mode]);
+    }
 }
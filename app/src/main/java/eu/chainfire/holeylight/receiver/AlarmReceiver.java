@@ -4,6 +4,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 
+import eu.chainfire.holeylight.animation.Overlay;
 import eu.chainfire.holeylight.service.NotificationListenerService;
 
 public class AlarmReceiver extends BroadcastReceiver {
@@ -13,6 +14,8 @@ public class AlarmReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         try {
             NotificationListenerService.checkNotifications();
+            // set for AOD schedule changes, which Overlay doesn't get events for
+            Overlay.evaluateIfExists(true);
         } catch (Exception e) {
             e.printStackTrace();
         }